@@ -2,6 +2,7 @@ package Client;
 
 
 import ServiceInterfaces.AuctionSellerInterface;
+import ServiceInterfaces.Money;
 import java.rmi.RemoteException;
 
 /**
@@ -57,8 +58,8 @@ public class SellerProgram extends AuthenticatedUser {
      * the format [startPrice] [minPrice] [description]
      */
     private void createAuction(String[] args) throws RemoteException {
-        double startPrice = Double.parseDouble(args[1]);
-        double minPrice = Double.parseDouble(args[2]);
+        long startPrice = Money.parse(args[1]);
+        long minPrice = Money.parse(args[2]);
         String description = "";
 
         for (int i = 3; i < args.length; i++) { //Read in all of the description strings
@@ -3,6 +3,7 @@ package Client;
 
 import Server.ReplicationManager;
 import ServiceInterfaces.AuctionUserInterface;
+import ServiceInterfaces.Money;
 import java.rmi.RemoteException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -77,7 +78,7 @@ public class UserProgram extends AuthenticatedUser {
      */
     private void bid(String[] args) throws RemoteException {
         int auctionID = Integer.parseInt(args[1]);
-        double amount = Double.parseDouble(args[2]);
+        long amount = Money.parse(args[2]);
         String result = this.bidder.bid(auctionID, amount);
         System.out.println(result);
     }
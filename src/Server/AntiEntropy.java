@@ -0,0 +1,187 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jgroups.Address;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.ResponseMode;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.util.Rsp;
+import org.jgroups.util.RspList;
+
+/**
+ * Finds and repairs AuctionServers whose state has drifted from the rest, in
+ * the background, so clients never wait on it.
+ *
+ * Every interval the state digests of all servers are compared with the
+ * others of the same shard, and servers that differ from their shard's
+ * majority are told to delta sync with a server in it, through the
+ * SyncCoordinator so no server is synced twice at once. Servers already
+ * syncing, or whose shard isn't known yet, are left out of the comparison.
+ * As digests also differ briefly while writes are in flight, a server is only
+ * repaired once it has been seen to differ twice: in two sweeps in a row, or
+ * in a sweep after a vote on a client call reported it. No more than a set
+ * number of repairs are started each interval, and repairs are sent without
+ * waiting for them to finish.
+ *
+ * @author DominicWild
+ */
+public class AntiEntropy {
+
+    public static final String INTERVAL_PROPERTY = "auction.antientropy.interval";  //System property setting milliseconds between sweeps.
+    public static final String RATE_PROPERTY = "auction.antientropy.rate";          //System property setting the most repairs started per interval.
+
+    private static final int DEFAULT_INTERVAL = 2000;                   //Milliseconds between sweeps if not set.
+    private static final int DEFAULT_RATE = 2;                          //Repairs started per interval if not set.
+
+    private final RpcDispatcher rpc;                                    //Dispatcher to reach the AuctionServers with.
+    private final SyncCoordinator coordinator;                          //Starts syncs, at most one per server at a time.
+    private final Function<Address, String> shards;                     //Gives the shard each server serves, or null if not known.
+    private final long interval;                                        //Milliseconds between sweeps.
+    private final int rate;                                             //Most repairs started per interval.
+    private final RequestOptions digestOptions = new RequestOptions(ResponseMode.GET_ALL, 5000); //Options for collecting digests.
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "anti-entropy");
+        t.setDaemon(true);
+        return t;
+    });                                                                 //Runs every sweep, one at a time.
+    private final Set<Address> suspects = ConcurrentHashMap.newKeySet(); //Servers reported by votes since the last sweep.
+    private final AtomicBoolean sweepQueued = new AtomicBoolean();     //Whether an early sweep is already queued.
+
+    private HashSet<Address> differedLastSweep = new HashSet<>();      //Servers that differed last sweep and weren't repaired.
+    private int budget;                                                 //Repairs left to start this interval.
+
+    /**
+     * Creates the service, reading its interval and rate from system
+     * properties.
+     *
+     * @param rpc The dispatcher to reach the AuctionServers with.
+     * @param coordinator Starts the syncs that repair servers.
+     * @param shards Gives the shard a server serves by its address, or null
+     * if it isn't known.
+     */
+    public AntiEntropy(RpcDispatcher rpc, SyncCoordinator coordinator, Function<Address, String> shards) {
+        this.rpc = rpc;
+        this.coordinator = coordinator;
+        this.shards = shards;
+        this.interval = Integer.getInteger(INTERVAL_PROPERTY, DEFAULT_INTERVAL);
+        this.rate = Integer.getInteger(RATE_PROPERTY, DEFAULT_RATE);
+        this.budget = this.rate;
+    }
+
+    /**
+     * Starts sweeping every interval.
+     */
+    public void start() {
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            this.budget = this.rate; //A new interval, a new allowance of repairs.
+            this.sweep();
+        }, this.interval, this.interval, TimeUnit.MILLISECONDS);
+        System.out.println("Anti-entropy sweeping every " + this.interval + "ms, at most " + this.rate + " repairs each.");
+    }
+
+    /**
+     * Stops sweeping.
+     */
+    public void stop() {
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Reports a server that disagreed with the majority on a client call. It
+     * is checked in a sweep run as soon as possible, and repaired if it still
+     * differs. Returns at once.
+     *
+     * @param server The address of the server.
+     */
+    public void suspect(Address server) {
+        this.suspects.add(server);
+        if (this.sweepQueued.compareAndSet(false, true)) {
+            this.scheduler.execute(this::sweep);
+        }
+    }
+
+    /**
+     * Looks at the state digests that servers agreeing on a client call gave
+     * with their replies. Those may differ only because the servers applied
+     * concurrent calls in different orders, so a difference isn't counted
+     * against anyone; it just brings the next sweep forward, which repairs a
+     * server only if it keeps differing. Returns at once.
+     *
+     * @param digests The digest each server gave, by address.
+     */
+    public void compare(Map<Address, Long> digests) {
+        if (new HashSet<>(digests.values()).size() > 1 && this.sweepQueued.compareAndSet(false, true)) {
+            this.scheduler.execute(this::sweep);
+        }
+    }
+
+    /**
+     * Compares the digests of every server within its shard and starts
+     * repairs of those that have been seen to differ twice, within what is
+     * left of the budget.
+     */
+    private void sweep() {
+        this.sweepQueued.set(false);
+        try {
+            MethodCall method = new MethodCall("getStateDigest", new Object[]{}, new Class<?>[]{});
+            RspList<Long> responses = this.rpc.callRemoteMethods(null, method, this.digestOptions);
+            HashMap<String, HashMap<Long, ArrayList<Address>>> tallies = new HashMap<>(); //Servers with each digest, per shard.
+            for (Map.Entry<Address, Rsp<Long>> e : responses.entrySet()) {
+                String shard = this.shards.apply(e.getKey());
+                if (shard != null && e.getValue().wasReceived() && e.getValue().getValue() != null && !this.coordinator.isSyncing(e.getKey())) {
+                    tallies.computeIfAbsent(shard, s -> new HashMap<>()).computeIfAbsent(e.getValue().getValue(), d -> new ArrayList<>()).add(e.getKey());
+                }
+            }
+            HashSet<Address> unrepaired = new HashSet<>();
+            for (HashMap<Long, ArrayList<Address>> tally : tallies.values()) {
+                this.repairShard(tally, unrepaired);
+            }
+            this.differedLastSweep = unrepaired;
+            this.suspects.clear(); //Anyone reported but now in the majority was only behind on in-flight writes.
+        } catch (Exception ex) { //Never let an exception cancel future sweeps.
+            Logger.getLogger(AntiEntropy.class.getName()).log(Level.WARNING, "Anti-entropy sweep failed.", ex);
+        }
+    }
+
+    /**
+     * Starts repairs of the servers of one shard that differ from its
+     * majority, if they have been seen to differ twice.
+     *
+     * @param tally The servers of the shard giving each digest.
+     * @param unrepaired Collects the differing servers not repaired.
+     */
+    private void repairShard(HashMap<Long, ArrayList<Address>> tally, HashSet<Address> unrepaired) {
+        ArrayList<Address> majority = null;
+        for (ArrayList<Address> agreeing : tally.values()) {
+            if (majority == null || agreeing.size() > majority.size()) {
+                majority = agreeing;
+            }
+        }
+        for (ArrayList<Address> agreeing : tally.values()) {
+            if (agreeing == majority) {
+                continue;
+            }
+            for (Address server : agreeing) {
+                boolean confirmed = this.differedLastSweep.contains(server) || this.suspects.contains(server);
+                if (confirmed && this.budget > 0 && this.coordinator.requestSync(server, majority.get(0))) {
+                    this.budget--;
+                } else { //Not confirmed yet, over budget, or still resting from its last sync.
+                    unrepaired.add(server);
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package Server;
 
 import java.io.Serializable;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Representation of an Auction and its related variables.
@@ -8,81 +10,111 @@ import java.io.Serializable;
  */
 public class Auction implements Serializable {
 
-    private double currentPrice;            //Current highest bid amount
-    private String description;             //Description of the item
-    private double reservePrice;            //The reserve price
-    private String bidderEmail;             //The email of the current highest bidder.
-    private String bidderName;              //The name of the current highest bidder.
-    private String owner;                   //The name of the person who created the auction.
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicReference<Bid> leadingBid;  //Current highest bid, swapped atomically as a whole.
+    private String description;                     //Description of the item
+    private long reservePrice;                      //The reserve price, in cents.
+    private String owner;                           //The name of the person who created the auction.
 
     /**
      * Basic constructor to make an auction.
-     * @param startPrice The starting price for the item in this auction.
+     * @param startPrice The starting price for the item in this auction, in cents.
      * @param description The description of what the item under auction is.
-     * @param minPrice The minimum expected price for this auction.
+     * @param minPrice The minimum expected price for this auction, in cents.
      */
-    public Auction(String owner, double startPrice, String description, double minPrice) {
-        this.currentPrice = startPrice;
+    public Auction(String owner, long startPrice, String description, long minPrice) {
+        this.leadingBid = new AtomicReference<>(new Bid(startPrice, "***No one***", "***No Email***")); //default to no max bidder or email.
         this.description = description;
         this.reservePrice = minPrice;
-        this.bidderName = "***No one***"; //default to no max bidder.
-        this.bidderEmail = "***No Email***"; //default to no email.
         this.owner = owner;
     }
+
     /**
-     * Returns the email of the highest bidder.
-     * @return The email of the highest bidder.
+     * Rebuilds an auction from stored values, for storage engines that keep
+     * auctions outside of Auction objects.
+     * @param owner The name of the person who created the auction.
+     * @param description The description of what the item under auction is.
+     * @param reservePrice The reserve price, in cents.
+     * @param leadingBid The current leading bid.
      */
-    public String getBidderEmail() {
-        return bidderEmail;
+    Auction(String owner, String description, long reservePrice, Bid leadingBid) {
+        this.leadingBid = new AtomicReference<>(leadingBid);
+        this.description = description;
+        this.reservePrice = reservePrice;
+        this.owner = owner;
     }
 
     /**
-     * Sets the highest bidders email.
-     * @param bidderEmail The email to set the highest bidders email to.
+     * Attempts to make the passed bid the leading bid. The leading bid is
+     * swapped with a compare-and-set, retrying only while the new bid still
+     * beats whatever bid is leading, so losing bids fail without ever
+     * blocking.
+     * @param bid The bid to place.
+     * @return The bid that was displaced, or null if the bid didn't win.
      */
-    public void setBidderEmail(String bidderEmail) {
-        this.bidderEmail = bidderEmail;
+    public Bid placeBid(Bid bid) {
+        Bid current = this.leadingBid.get();
+        while (bid.beats(current)) {
+            if (this.leadingBid.compareAndSet(current, bid)) {
+                return current;
+            }
+            current = this.leadingBid.get(); //Someone else got in first, re-check against their bid.
+        }
+        return null;
     }
 
     /**
-     * Gets the name of the highest bidder.
-     * @return The name of the highest bidder.
+     * Closes this auction so no further bids can be placed on it.
+     * @return The final leading bid.
      */
-    public String getBidderName() {
-        return bidderName;
+    public Bid close() {
+        Bid current = this.leadingBid.get();
+        while (!current.isClosed() && !this.leadingBid.compareAndSet(current, current.close())) {
+            current = this.leadingBid.get();
+        }
+        return this.leadingBid.get();
     }
 
     /**
-     * Sets the name of the highest bidder.
-     * @param bidderName The name to set the highest bidders name to.
+     * Gets the current leading bid, whose price, name and email are
+     * consistent with each other.
+     * @return The current leading bid.
      */
-    public void setBidderName(String bidderName) {
-        this.bidderName = bidderName;
+    public Bid getLeadingBid() {
+        return this.leadingBid.get();
     }
 
     /**
-     * Gets the current highest bid value on this auction.
-     * @return The current highest bid value on this auction.
+     * Returns the email of the highest bidder.
+     * @return The email of the highest bidder.
      */
-    public double getCurrentPrice() {
-        return currentPrice;
+    public String getBidderEmail() {
+        return this.leadingBid.get().getBidderEmail();
     }
 
     /**
-     * Gets the reserve price for this auction.
-     * @return The reserve price for this auction.
+     * Gets the name of the highest bidder.
+     * @return The name of the highest bidder.
      */
-    public double getReservePrice() {
-        return reservePrice;
+    public String getBidderName() {
+        return this.leadingBid.get().getBidderName();
+    }
+
+    /**
+     * Gets the current highest bid value on this auction.
+     * @return The current highest bid value on this auction, in cents.
+     */
+    public long getCurrentPrice() {
+        return this.leadingBid.get().getPrice();
     }
 
     /**
-     * Sets the current highest bid for this auction.
-     * @param currentPrice The value to set the highest bid to.
+     * Gets the reserve price for this auction.
+     * @return The reserve price for this auction, in cents.
      */
-    public void setCurrentPrice(double currentPrice) {
-        this.currentPrice = currentPrice;
+    public long getReservePrice() {
+        return reservePrice;
     }
 
     /**
@@ -105,17 +137,25 @@ public class Auction implements Serializable {
     public boolean equals(Object obj) {
         if (obj instanceof Auction) {
             Auction a = (Auction) obj;
-            return a.getBidderEmail().equals(this.getBidderEmail())
-                    && a.getBidderName().equals(this.getBidderName())
-                    && a.getCurrentPrice() == this.getCurrentPrice()
-                    && a.getDescription().equals(this.getDescription())
-                    && a.getOwner().equals(this.getOwner())
+            Bid theirs = a.getLeadingBid();
+            Bid ours = this.getLeadingBid();
+            return Objects.equals(theirs.getBidderEmail(), ours.getBidderEmail())
+                    && Objects.equals(theirs.getBidderName(), ours.getBidderName())
+                    && theirs.getPrice() == ours.getPrice()
+                    && Objects.equals(a.getDescription(), this.getDescription())
+                    && Objects.equals(a.getOwner(), this.getOwner())
                     && a.getReservePrice() == this.getReservePrice();
         } else {
             return super.equals(obj);
         }
     }
 
+    @Override
+    public int hashCode() { //Consistent with equals, so replies carrying auctions can be tallied.
+        Bid bid = this.getLeadingBid();
+        return Objects.hash(bid.getBidderEmail(), bid.getBidderName(), bid.getPrice(), this.getDescription(), this.getOwner(), this.getReservePrice());
+    }
+
 
 
 
@@ -2,6 +2,7 @@ package Server;
 
 
 import ServiceInterfaces.AuctionSellerInterface;
+import ServiceInterfaces.Money;
 import java.rmi.RemoteException;
 
 /**
@@ -12,6 +13,8 @@ import java.rmi.RemoteException;
  */
 public class AuctionSeller extends NamedObject implements AuctionSellerInterface {
 
+    private static final long serialVersionUID = 1L;
+
     private ReplicationManager server;       //The auction server this implementation is associated with.
 
     /**
@@ -29,13 +32,13 @@ public class AuctionSeller extends NamedObject implements AuctionSellerInterface
     /**
      * Creates an auction and registers this with the server.
      *
-     * @param startPrice The starting price of the auction.
+     * @param startPrice The starting price of the auction, in cents.
      * @param description The description of the item on auction.
-     * @param minPrice The minimum expected price for the auction item.
+     * @param minPrice The minimum expected price for the auction item, in cents.
      * @return The id of the auction created.
      */
     @Override
-    public int createAuction(double startPrice, String description, double minPrice) throws RemoteException {
+    public int createAuction(long startPrice, String description, long minPrice) throws RemoteException {
         if (startPrice < 0) { //If we get a negative startPrice, assume a startPrice of 0.
             startPrice = 0;
         }
@@ -66,7 +69,7 @@ public class AuctionSeller extends NamedObject implements AuctionSellerInterface
         if (toClose.getReservePrice() < toClose.getCurrentPrice()) { //If the reserve price is greater
             return preMessage + "The winner is: " + toClose.getBidderName() + " with email: " + toClose.getBidderEmail();
         } else {
-            return preMessage + "This auction failed to meet its reserved price of " + toClose.getReservePrice() + " with highest bid " + toClose.getCurrentPrice();
+            return preMessage + "This auction failed to meet its reserved price of " + Money.format(toClose.getReservePrice()) + " with highest bid " + Money.format(toClose.getCurrentPrice());
         }
 
     }
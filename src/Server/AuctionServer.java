@@ -2,26 +2,48 @@ package Server;
 
 import Client.UserProgram;
 import Security.AuctionSecurity;
+import ServiceInterfaces.Money;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jgroups.Address;
+import org.jgroups.JChannel;
 import org.jgroups.Message;
 import org.jgroups.View;
-import org.jgroups.util.Util;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.Response;
+import org.jgroups.blocks.ResponseMode;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.util.Rsp;
+import org.jgroups.util.RspList;
 
 /**
  * An auction server that hosts all auctions.
@@ -30,50 +52,358 @@ import org.jgroups.util.Util;
  */
 public class AuctionServer extends ChannelMember {
 
-    private HashMap<Integer, Auction> liveAuctions = new HashMap<>();   //Holds all auctions currently running
+    public static final String STORAGE_PROPERTY = "auction.storage";    //System property choosing the storage engine, "heap" or "columnar".
+    public static final String BOOTSTRAP_DONORS_PROPERTY = "auction.bootstrap.donors"; //System property capping how many servers a joining server copies from at once.
+
+    private final AuctionStore liveAuctions = createStore();            //Holds all auctions currently running
+    private final Object stateLock = new Object();                      //Guards the ID watermark.
     private final String TEST_FILE = "auctions.csv";                    //File that loads some test auctions into the system.
     private static final int INITIAL_ID = 1000;                         //The initial ID to start at.
 
-    private int incrementID = INITIAL_ID;                               //The incrementing id for making auction id's.
-    private long checkSum = 0;                                          //Make a checksum for validating the state of the database
+    private int incrementID = INITIAL_ID;                               //The first auction ID not yet leased out to the replication manager.
+    private final StateDigest digest = new StateDigest();               //Hash tree of the state, for validating it against other replicas.
+    private final BucketLocks bucketLocks = new BucketLocks();          //Lets repairs replace whole buckets atomically.
+    private final ChangeJournal journal = new ChangeJournal();          //Auctions changed while snapshots are being sent.
+    private static final int CATCH_UP_ROUNDS = 8;                       //Most times changes made during a snapshot are re-sent before it ends.
+    private final RequestOptions syncOptions = new RequestOptions(ResponseMode.GET_FIRST, 5000); //Options for RPCs to the server we sync with.
+    private WriteAheadLog log;                                          //Durable log of changes, or null if running in memory only.
+    private final Sequencer sequencer = new Sequencer();                //Runs sequenced calls in the order the manager numbered them.
+    private final String shard = ShardRing.localShard();                //The shard of auctions this server holds.
+    private static final long DIRECTORY_TIMEOUT = 5000;                 //Milliseconds to wait for the manager to say which shard each server serves.
+    private final Object peersLock = new Object();                      //Signals the arrival of a new shard directory.
+    private static final int DEFAULT_BOOTSTRAP_DONORS = 4;              //Most servers copied from at once if not set.
+    private static final int VERIFY_ROUNDS = 3;                         //Most times buckets failing verification are fetched again.
+    public static final int PAGE_SIZE = 4096;                           //Most auctions sent in one page of a bucket transfer.
+    private static final long MAX_STATE_BACKOFF = 30000;                //Longest wait between attempts to get the whole state.
+    private volatile Map<Address, String> peerShards = new HashMap<>();  //Shard each server serves, by address.
 
     public static void main(String[] args) {
         AuctionServer server = new AuctionServer();
+        server.recover(); //Before joining, so no one is sent a half recovered state.
         server.joinGroupChannel();
         server.init();
         server.waitForCommands();
     }
 
+    /**
+     * Creates the storage engine chosen by the auction.storage system
+     * property. The columnar engine keeps auctions off the heap, for catalogs
+     * too large to hold as objects.
+     *
+     * @return The store to hold live auctions in.
+     */
+    private static AuctionStore createStore() {
+        if ("columnar".equals(System.getProperty(STORAGE_PROPERTY))) {
+            return new ColumnarAuctionStore();
+        }
+        return new HeapAuctionStore();
+    }
+
+    /**
+     * Rebuilds the state of this server from its write-ahead log, if one is
+     * kept. The log is kept in the directory named by the auction.data.dir
+     * system property, such as Database/Server/replica1/.
+     */
+    private void recover() {
+        String directory = System.getProperty(WriteAheadLog.DATA_DIR_PROPERTY);
+        if (directory == null) {
+            return;
+        }
+        try {
+            this.log = WriteAheadLog.open(Paths.get(directory), new LogReplayer(), this::writeSnapshot);
+            this.liveAuctions.forEach((a, id) -> this.digest.add(id, a));
+            System.out.println(this.liveAuctions.size() + " auctions recovered from " + directory);
+        } catch (IOException ex) {
+            Logger.getLogger(AuctionServer.class.getName()).log(Level.SEVERE, "Error recovering from the write-ahead log, running in memory only.", ex);
+            this.log = null;
+        }
+    }
+
     /**
      * A general initialisation function.
      */
     private void init() {
+        Address donor = this.stateInitialisation(); //Get state before dealing with rpc calls.
         this.rpc.setServerObject(this);
-        this.stateInitialisation(); //Get state before dealing with rpc calls.
-        this.rpc.start();
+        if (donor != null) { //Fetch only what we missed while down.
+            this.sync(donor);
+        }
     }
 
     /**
      * Initialize the state of this auction server when it boots up and joins
-     * the auction channel.
+     * the group channel. State is only copied from servers of the same
+     * shard, several at once, see bootstrap. A server with no one to copy
+     * from starts with whatever it recovered from its log.
+     *
+     * @return The address of the server to catch up with once RPC calls are
+     * running, or null if the state is already set.
+     */
+    private Address stateInitialisation() {
+        this.announce();
+        List<Address> donors = this.shardDonors();
+        if (donors.isEmpty()) {
+            System.out.println("No other auction servers running in shard " + this.shard + ", starting with " + this.liveAuctions.size() + " auctions.");
+            return null;
+        }
+        donors = this.inSyncDonors(donors); //Never copy from, or catch up with, a drifted server.
+        if (this.log != null && this.log.hasRecovered()) {
+            return donors.get(0);
+        }
+        if (this.bootstrap(donors)) {
+            return donors.get(0);
+        }
+        long backoff = 1000;
+        while (true) { //Can't join unless we get state.
+            try {
+                this.channel.getState(donors.get(0), 5000, true); //Get the whole state of the oldest auction server in our shard.
+                return donors.get(0); //Still catch up on writes made while it was sent.
+            } catch (Exception ex) {
+                Logger.getLogger(AuctionServer.class.getName()).log(Level.SEVERE, "Error getting state, retrying in " + backoff + "ms.", ex);
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return donors.get(0); //The catch-up sync copies what we couldn't.
+            }
+            backoff = Math.min(backoff * 2, MAX_STATE_BACKOFF);
+        }
+    }
+
+    /**
+     * Copies the state of our shard from several servers at once. The buckets
+     * of the state digest, which split auction IDs into disjoint sets, are
+     * divided into one range per donor and every range is fetched at the same
+     * time, a page at a time, see getBucketIDs and getAuctionPage. Each range
+     * is verified against its donor's digest once applied,
+     * fetching again any buckets that differ, as they were written to during
+     * the copy. A range whose donor fails is fetched from the next donor.
+     * Writes made during the copy are caught up on afterwards with a delta
+     * sync, once RPC calls are running.
+     *
+     * @param donors The servers to copy from, oldest first.
+     * @return True if every range was copied, false to copy the whole state
+     * from one server instead.
+     */
+    private boolean bootstrap(List<Address> donors) {
+        int ranges = Math.max(1, Math.min(donors.size(), Integer.getInteger(BOOTSTRAP_DONORS_PROPERTY, DEFAULT_BOOTSTRAP_DONORS)));
+        long start = System.currentTimeMillis();
+        ExecutorService fetchers = Executors.newFixedThreadPool(ranges, r -> {
+            Thread t = new Thread(r, "bootstrap-fetcher");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            ArrayList<CompletableFuture<Boolean>> copies = new ArrayList<>();
+            for (int i = 0; i < ranges; i++) {
+                int first = i;
+                int[] buckets = new int[StateDigest.BUCKETS * (i + 1) / ranges - StateDigest.BUCKETS * i / ranges];
+                for (int b = 0; b < buckets.length; b++) {
+                    buckets[b] = StateDigest.BUCKETS * i / ranges + b;
+                }
+                copies.add(CompletableFuture.supplyAsync(() -> this.copyRange(buckets, donors, first), fetchers));
+            }
+            for (CompletableFuture<Boolean> copy : copies) {
+                if (!copy.join()) {
+                    return false;
+                }
+            }
+        } finally {
+            fetchers.shutdown();
+        }
+        System.out.println(this.liveAuctions.size() + " auctions copied from " + ranges + " servers in " + (System.currentTimeMillis() - start) + "ms.");
+        return true;
+    }
+
+    /**
+     * Copies one range of buckets, trying each donor in turn from the one
+     * assigned until one succeeds.
+     *
+     * @param buckets The buckets of the range.
+     * @param donors The servers to copy from.
+     * @param first The index of the donor assigned to the range.
+     * @return True if the range was copied.
      */
-    private void stateInitialisation() {
-        View view = this.auctionChannel.getView();
-        boolean stateSet = false;
-        while (!stateSet) { //Can't join unless we get state.
+    private boolean copyRange(int[] buckets, List<Address> donors, int first) {
+        for (int i = 0; i < donors.size(); i++) {
+            Address donor = donors.get((first + i) % donors.size());
             try {
-                this.auctionChannel.getState(view.get(1), 5000, true); //Get the state of the oldest auction server.
-                stateSet = true;
+                int[] fetch = buckets;
+                for (int round = 0; round < VERIFY_ROUNDS && fetch.length > 0; round++) {
+                    this.copyBuckets(donor, fetch);
+                    fetch = this.unverifiedBuckets(donor, fetch);
+                }
+                if (fetch.length > 0) {
+                    System.out.println(fetch.length + " buckets still differ from " + donor + ", leaving them to the catch-up sync.");
+                }
+                return true;
             } catch (Exception ex) {
-                Logger.getLogger(AuctionServer.class.getName()).log(Level.SEVERE, "Error getting state.", ex);
+                Logger.getLogger(AuctionServer.class.getName()).log(Level.WARNING, "Error copying buckets from " + donor + ", trying the next server.", ex);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the contents of some buckets with those of a donor, copying a
+     * page of auctions at a time so neither side holds more than a page.
+     *
+     * @param donor The address of the server to copy from.
+     * @param buckets The buckets to copy.
+     * @throws Exception If the donor couldn't be asked for a page.
+     */
+    private void copyBuckets(Address donor, int[] buckets) throws Exception {
+        MethodCall list = new MethodCall("getBucketIDs", new Object[]{buckets}, new Class<?>[]{int[].class});
+        int[] ids = this.rpc.callRemoteMethod(donor, list, this.syncOptions);
+        int from = 0;
+        do { //At least one page, for the watermark.
+            int[] page = Arrays.copyOfRange(ids, from, Math.min(ids.length, from + PAGE_SIZE));
+            MethodCall fetch = new MethodCall("getAuctionPage", new Object[]{page}, new Class<?>[]{int[].class});
+            HashMap<Integer, Auction> auctions = new HashMap<>();
+            int watermark = readAuctionPage(this.rpc.callRemoteMethod(donor, fetch, this.syncOptions), auctions);
+            this.applyBuckets(from == 0 ? buckets : new int[0], watermark, auctions); //The first page clears the buckets, the rest add to them.
+            from += PAGE_SIZE;
+        } while (from < ids.length);
+    }
+
+    /**
+     * Finds which of the passed buckets differ from another server, by
+     * comparing the leaves of both state digests.
+     *
+     * @param donor The address of the other server.
+     * @param buckets The buckets to check.
+     * @return The buckets that differ.
+     * @throws Exception If the other server couldn't be asked for its digest.
+     */
+    private int[] unverifiedBuckets(Address donor, int[] buckets) throws Exception {
+        int[] leaves = new int[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            leaves[i] = StateDigest.leafOf(buckets[i]);
+        }
+        MethodCall method = new MethodCall("getDigestNodes", new Object[]{leaves}, new Class<?>[]{int[].class});
+        long[] theirs = this.rpc.callRemoteMethod(donor, method, this.syncOptions);
+        long[] ours = this.digest.nodes(leaves);
+        ArrayList<Integer> differing = new ArrayList<>();
+        for (int i = 0; i < buckets.length; i++) {
+            if (theirs[i] != ours[i]) {
+                differing.add(buckets[i]);
+            }
+        }
+        int[] result = new int[differing.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = differing.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the donors whose state digests agree with most of the others, so
+     * a drifted server isn't copied from.
+     *
+     * @param donors The other servers of our shard, oldest first.
+     * @return The donors that agree, oldest first, or all of them if they
+     * couldn't be asked.
+     */
+    private List<Address> inSyncDonors(List<Address> donors) {
+        try {
+            MethodCall method = new MethodCall("getStateDigest", new Object[]{}, new Class<?>[]{});
+            RspList<Long> digests = this.rpc.callRemoteMethods(donors, method, this.toTargets(new RequestOptions(this.syncOptions).setMode(ResponseMode.GET_ALL), donors));
+            HashMap<Long, ArrayList<Address>> tally = new HashMap<>();
+            ArrayList<Address> majority = new ArrayList<>();
+            for (Address donor : donors) {
+                Rsp<Long> rsp = digests.get(donor);
+                if (rsp != null && rsp.wasReceived() && rsp.getValue() != null) {
+                    ArrayList<Address> agreeing = tally.computeIfAbsent(rsp.getValue(), d -> new ArrayList<>());
+                    agreeing.add(donor);
+                    if (agreeing.size() > majority.size()) {
+                        majority = agreeing;
+                    }
+                }
+            }
+            if (!majority.isEmpty()) {
+                return majority;
             }
+        } catch (Exception ex) {
+            Logger.getLogger(AuctionServer.class.getName()).log(Level.WARNING, "Error asking donors for their state digests.", ex);
         }
-        Message msg = new Message(view.get(0), new Object[]{this.rpcChannel.getAddress(), this.auctionChannel.getAddress()});
-        try { //Send rpc mapping message.
-            this.auctionChannel.send(msg);
+        return donors;
+    }
+
+    /**
+     * Tells the replication manager the shard we serve.
+     */
+    private void announce() {
+        Message msg = new Message(this.channel.getView().get(0), new Object[]{this.channel.getAddress(), this.shard});
+        try {
+            this.channel.send(msg);
         } catch (Exception ex) {
-            Logger.getLogger(AuctionServer.class.getName()).log(Level.SEVERE, "Error sending mapping of rpc channel address to auctionChannel address.", ex);
+            Logger.getLogger(AuctionServer.class.getName()).log(Level.SEVERE, "Error announcing our shard to the replication manager.", ex);
+        }
+    }
+
+    /**
+     * Finds the other servers of our shard, once the replication manager has
+     * sent a shard directory listing us. If it never does, such as a manager
+     * without shards, the oldest other server is taken.
+     *
+     * @return The addresses of the servers, oldest first. Empty if there are
+     * none.
+     */
+    private List<Address> shardDonors() {
+        Address self = this.channel.getAddress();
+        long deadline = System.currentTimeMillis() + DIRECTORY_TIMEOUT;
+        synchronized (this.peersLock) {
+            while (!this.peerShards.containsKey(self)) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    System.out.println("No shard directory from the replication manager, copying from any server.");
+                    return asList(oldestOtherServer(this.channel.getView(), self));
+                }
+                try {
+                    this.peersLock.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return asList(oldestOtherServer(this.channel.getView(), self));
+                }
+            }
+        }
+        View view = this.channel.getView();
+        ArrayList<Address> donors = new ArrayList<>();
+        for (int i = 1; i < view.size(); i++) {
+            if (!view.get(i).equals(self) && this.shard.equals(this.peerShards.get(view.get(i)))) {
+                donors.add(view.get(i));
+            }
+        }
+        return donors;
+    }
+
+    /**
+     * Wraps an address that may be null in a list.
+     *
+     * @param server The address, or null.
+     * @return A list of just the address, or an empty list if it is null.
+     */
+    private static List<Address> asList(Address server) {
+        return server == null ? Collections.<Address>emptyList() : Collections.singletonList(server);
+    }
+
+    /**
+     * Finds the oldest auction server in a view other than ourselves. The
+     * first member of a view is the replication manager.
+     *
+     * @param view The view of a channel.
+     * @param self Our own address on that channel.
+     * @return The address of the oldest other server, or null if there is
+     * none.
+     */
+    private static Address oldestOtherServer(View view, Address self) {
+        for (int i = 1; i < view.size(); i++) {
+            if (!view.get(i).equals(self)) {
+                return view.get(i);
+            }
         }
+        return null;
     }
 
     /**
@@ -103,44 +433,167 @@ public class AuctionServer extends ChannelMember {
         if (command.trim().equals("length")) { //Prints how many auctions we have.
             System.out.println("There are currently " + this.liveAuctions.size() + " running auctions.");
         } else if (command.trim().equals("rand")) { //Add a random auction for testing
-            this.addAuction(new Auction("Rand", 1, "Rand", 2));
+            this.add(new Auction("Rand", 100, "Rand", 200), this.leaseIDs(1));
+        } else if (command.trim().equals("snapshot") && this.log != null) { //Compact the write-ahead log now.
+            this.log.scheduleCheckpoint();
         }
     }
 
     /**
-     * Adds an auction to the system.
+     * Answers a replicated call with its result and the state digest after it,
+     * so the replication manager can check consistency from the same
+     * responses.
      *
-     * @param a The auction to add to the system.
-     * @return The id of the currently created auction or -1 if auction was
-     * failed to be added. This may be due to capacity limits.
+     * @param result What the call returned.
+     * @return The reply to send back.
      */
-    public int addAuction(Auction a) {
-        int attempts = 0; //Id to identify auction.
-        synchronized (this.liveAuctions) { //Must ensure consistent state when adding a new auction, to not get conflicting ID's.
-            while (liveAuctions.containsKey(incrementID)) {
-                if (attempts < 5000) {
-                    incrementID++;
-                    attempts++;
-                } else { //Been here for an unusually long time, assume we have reached capacity.
-                    return -1;
-                }
-            }
-            this.addAuction(a, incrementID);
-            System.out.println("Added auction with ID " + incrementID);
+    private Reply reply(Object result) {
+        return new Reply(result, this.digest.root());
+    }
+
+    /**
+     * Replicated call in sequenced mode, running one of the other replicated
+     * calls once every call numbered before it has run. Every replica runs
+     * sequenced calls one at a time in the same order, so they all reach the
+     * same state and give the same replies. Returns at once; the reply is
+     * sent when the call has run, see SequencedDispatcher.
+     *
+     * @param epoch The epoch of the manager that numbered the call.
+     * @param seq The call's sequence number within the epoch.
+     * @param method The name of the replicated call to run.
+     * @param args The arguments of the call.
+     * @param done Given the reply of the call, or null if its turn was
+     * skipped.
+     */
+    private void sequenced(long epoch, long seq, String method, Object[] args, Consumer<Reply> done) {
+        this.sequencer.submit(epoch, seq, () -> this.dispatch(method, args), done);
+    }
+
+    /**
+     * Creates a dispatcher that answers sequenced calls once they have run,
+     * rather than holding a thread until their turn.
+     *
+     * @return The dispatcher.
+     */
+    @Override
+    protected RpcDispatcher createDispatcher() {
+        return new SequencedDispatcher(this.channel, this);
+    }
+
+    /**
+     * Runs a replicated call by name, for sequenced calls.
+     *
+     * @param method The name of the replicated call.
+     * @param args The arguments of the call.
+     * @return The reply of the call, or null if there is no such call.
+     */
+    private Reply dispatch(String method, Object[] args) {
+        switch (method) {
+            case "leaseIDRange":
+                return this.leaseIDRange((int) args[0]);
+            case "addAuction":
+                return this.addAuction((Auction) args[0], (int) args[1]);
+            case "removeAuction":
+                return this.removeAuction((String) args[0], (int) args[1]);
+            case "placeBid":
+                return this.placeBid((int) args[0], (long) args[1], (String) args[2], (String) args[3]);
+            case "placeBids":
+                return this.placeBids((int[]) args[0], (long[]) args[1], (String[]) args[2], (String[]) args[3]);
+            case "getListings":
+                return this.getListings((Address) args[0]);
+            case "getListingRows":
+                return this.getListingRows((Address) args[0]);
+            case "emailFromFile":
+                return this.emailFromFile((String) args[0]);
+            default:
+                System.out.println("Unknown sequenced call: " + method);
+                return null;
+        }
+    }
+
+    /**
+     * Replicated call to lease a range of auction IDs.
+     *
+     * @param size The number of IDs to lease.
+     * @return A reply holding the first ID of the leased range.
+     */
+    public Reply leaseIDRange(int size) {
+        return this.reply(this.leaseIDs(size));
+    }
+
+    /**
+     * Leases a range of unused auction IDs to the replication manager, which
+     * then hands them out to new auctions itself. Every replica in sync holds
+     * the same watermark, so they all lease out the same range.
+     *
+     * @param size The number of IDs to lease.
+     * @return The first ID of the leased range.
+     */
+    private int leaseIDs(int size) {
+        int start;
+        long logged;
+        synchronized (this.stateLock) {
+            start = this.incrementID;
+            this.incrementID += size;
+            int watermark = this.incrementID;
+            logged = this.appendToLog(l -> l.lease(watermark));
         }
-        this.updateCheckSum(a);
-        this.updateCheckSum(this.incrementID);
-        return incrementID;
+        this.awaitLogged(logged); //The lease must survive a restart, or the IDs could be handed out twice.
+        return start;
+    }
+
+    /**
+     * Replicated call to add an auction.
+     *
+     * @param a The auction to add.
+     * @param id The ID that identifies it.
+     * @return A reply holding the ID of the auction added, or -1 if the ID was
+     * already taken.
+     */
+    public Reply addAuction(Auction a, int id) {
+        return this.reply(this.add(a, id));
     }
 
     /**
-     * Adds an auction with a specified id to the system.
+     * Adds an auction with an ID allocated by the replication manager. IDs are
+     * never probed for, so every replica stores the auction under the same ID.
      *
      * @param a The auction to add.
      * @param id The ID that identifies it.
+     * @return The ID of the auction added, or -1 if the ID was already taken.
+     */
+    private int add(Auction a, int id) {
+        Lock lock = this.bucketLocks.sharedFor(id);
+        long logged;
+        lock.lock();
+        try {
+            if (!this.liveAuctions.putIfAbsent(id, a)) {
+                return -1;
+            }
+            synchronized (this.stateLock) {
+                this.incrementID = Math.max(this.incrementID, id + 1); //Never lease out an ID that is already in use.
+            }
+            this.digest.add(id, a);
+            this.journal.touch(id);
+            logged = this.appendToLog(l -> l.add(id, a));
+        } finally {
+            lock.unlock();
+        }
+        this.awaitLogged(logged);
+        System.out.println("Added auction with ID " + id);
+        return id;
+    }
+
+    /**
+     * Replicated call to remove an auction.
+     *
+     * @param remover The person attempting to remove this auction.
+     * @param auctionID The id of the auction to remove.
+     * @return A reply holding the auction removed, or null if the remover
+     * doesn't own it.
      */
-    private void addAuction(Auction a, int id) {
-        liveAuctions.put(id, a);
+    public Reply removeAuction(String remover, int auctionID) {
+        return this.reply(this.remove(remover, auctionID));
     }
 
     /**
@@ -151,47 +604,179 @@ public class AuctionServer extends ChannelMember {
      * @return The auction that was removed. Or null, if an invalid remove was
      * attempted by a non-remover.
      */
-    public Auction removeAuction(String remover, int auctionID) {
+    private Auction remove(String remover, int auctionID) {
+        Lock lock = this.bucketLocks.sharedFor(auctionID);
+        Auction removed;
+        long logged = 0;
+        lock.lock();
         try {
-            synchronized (this.liveAuctions.get(auctionID)) { //Ensure no one is currently accessing the auction we're trying to remove.
-                if (this.liveAuctions.get(auctionID).getOwner().equals(remover)) {
-                    this.updateCheckSum(remover);
-                    this.updateCheckSum(auctionID);
-                    return liveAuctions.remove(auctionID);
-                } else {
-                    return null;
-                }
+            removed = this.liveAuctions.remove(auctionID, remover); //Owner check and removal are atomic within the auction's stripe.
+            if (removed != null) {
+                this.digest.remove(auctionID, removed);
+                this.journal.touch(auctionID);
+                logged = this.appendToLog(l -> l.remove(auctionID));
             }
-        } catch (NullPointerException e) { //If we get null, then auction does not exist.
-            return null;
+        } finally {
+            lock.unlock();
         }
+        this.awaitLogged(logged);
+        return removed;
     }
 
     public Auction getAuction(int auctionID) {
         return this.liveAuctions.get(auctionID);
     }
 
+    /**
+     * Replicated call to place a bid.
+     *
+     * @param auctionID The id of the auction to bid on.
+     * @param amount The amount to bid, in cents.
+     * @param name The name of the bidder.
+     * @param email The email of the bidder.
+     * @return A reply holding the outcome of the bid.
+     */
+    public Reply placeBid(int auctionID, long amount, String name, String email) {
+        return this.reply(this.bid(auctionID, amount, name, email));
+    }
+
+    /**
+     * Replicated call to place a batch of bids, applied in the order given.
+     *
+     * @param auctionIDs The id of the auction each bid is on.
+     * @param amounts The amount of each bid, in cents.
+     * @param names The name of each bidder.
+     * @param emails The email of each bidder.
+     * @return A reply holding the outcome of each bid.
+     */
+    public Reply placeBids(int[] auctionIDs, long[] amounts, String[] names, String[] emails) {
+        BidOutcome[] outcomes = new BidOutcome[auctionIDs.length];
+        for (int i = 0; i < auctionIDs.length; i++) {
+            outcomes[i] = this.bid(auctionIDs[i], amounts[i], names[i], emails[i]);
+        }
+        return this.reply(outcomes);
+    }
+
     /**
      * Place a bid on the specified auction, with the specified details.
      *
      * @param auctionID The id of the auction to bid on.
-     * @param amount The amount to bid.
+     * @param amount The amount to bid, in cents.
      * @param name The name of the bidder.
      * @param email The email of the bidder.
-     * @return A boolean representing whether the bid was successful or not.
-     */
-    public boolean placeBid(int auctionID, double amount, String name, String email) {
-        synchronized (this.liveAuctions.get(auctionID)) { //Ensure no one else attempting to bid (or do anything) on auction
-            Auction a = this.liveAuctions.get(auctionID);
-            if (a.getCurrentPrice() < amount) { //Check if valid bid and update values.
-                a.setCurrentPrice(amount);
-                a.setBidderName(name);
-                a.setBidderEmail(emailFromFile(name));
-                return true;
-            } else {
-                return false;
+     * @return The outcome of the bid, PLACED, OUTBID or NO_AUCTION.
+     */
+    private BidOutcome bid(int auctionID, long amount, String name, String email) {
+        if (!this.liveAuctions.outbids(auctionID, amount)) { //Fail fast on losing bids, before any file access or allocation.
+            return this.lost(auctionID);
+        }
+        Bid bid = new Bid(amount, name, this.readEmail(name));
+        Lock lock = this.bucketLocks.sharedFor(auctionID);
+        long logged;
+        lock.lock();
+        try {
+            Bid displaced = this.liveAuctions.placeBid(auctionID, bid); //Atomically swap in the bid if it still wins.
+            if (displaced == null) {
+                return this.lost(auctionID);
             }
+            this.digest.replaceBid(auctionID, displaced, bid);
+            this.journal.touch(auctionID);
+            logged = this.appendToLog(l -> l.bid(auctionID, bid));
+        } finally {
+            lock.unlock();
+        }
+        this.awaitLogged(logged);
+        return BidOutcome.PLACED;
+    }
+
+    /**
+     * Tells why a bid that didn't take failed.
+     *
+     * @param auctionID The id of the auction bid on.
+     * @return NO_AUCTION if there is no such live auction, otherwise OUTBID.
+     */
+    private BidOutcome lost(int auctionID) {
+        return this.liveAuctions.containsKey(auctionID) ? BidOutcome.OUTBID : BidOutcome.NO_AUCTION;
+    }
+
+    /**
+     * Appends a change to the write-ahead log, if one is kept. Called holding
+     * the shared bucket lock the change was made under, which keeps it apart
+     * from repairs of the bucket but not from other writers, so concurrent
+     * changes to one auction may be logged in a different order to the one
+     * they were made in. WriteAheadLog replays them to the same state in any
+     * such order.
+     *
+     * @param append Appends the record of the change.
+     * @return The sequence number to pass to awaitLogged, or 0 if no log is
+     * kept.
+     * @throws UncheckedIOException If the record couldn't be appended, so the
+     * call fails rather than being acknowledged without being durable.
+     */
+    private long appendToLog(WriteAheadLog.Append append) {
+        if (this.log == null) {
+            return 0;
+        }
+        try {
+            return append.to(this.log);
+        } catch (IOException ex) {
+            Logger.getLogger(AuctionServer.class.getName()).log(Level.SEVERE, "Error writing to the write-ahead log.", ex);
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Waits until a change appended to the write-ahead log is on disk. Callers
+     * waiting at the same time share a single flush.
+     *
+     * @param sequence The sequence number returned by appendToLog.
+     * @throws UncheckedIOException If the log couldn't be flushed, so the call
+     * fails rather than being acknowledged without being durable.
+     */
+    private void awaitLogged(long sequence) {
+        if (this.log == null || sequence == 0) {
+            return;
+        }
+        try {
+            this.log.sync(sequence);
+        } catch (IOException ex) {
+            Logger.getLogger(AuctionServer.class.getName()).log(Level.SEVERE, "Error flushing the write-ahead log.", ex);
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Replicated call to list all current bids. Listings can be large, so
+     * only the server chosen by the replication manager sends the listing
+     * itself, the rest just send its hash to vote with.
+     *
+     * @param returner The address of the server that should send
+     * the listing, or null for every server to send it.
+     * @return A reply holding a string of all current bids, or its hash.
+     */
+    public Reply getListings(Address returner) {
+        String listings = this.listings();
+        if (returner == null || returner.equals(this.channel.getAddress())) {
+            return this.reply(listings);
+        }
+        return Reply.hashOnly(listings, this.digest.root());
+    }
+
+    /**
+     * Replicated call to list the rows of all current bids, without the
+     * table around them, so the manager can merge the rows of every shard.
+     * As with getListings, only the chosen server sends the rows themselves.
+     *
+     * @param returner The address of the server that should send
+     * the rows, or null for every server to send them.
+     * @return A reply holding the rows of all current bids, or their hash.
+     */
+    public Reply getListingRows(Address returner) {
+        String rows = this.listingRows();
+        if (returner == null || returner.equals(this.channel.getAddress())) {
+            return this.reply(rows);
         }
+        return Reply.hashOnly(rows, this.digest.root());
     }
 
     /**
@@ -199,22 +784,23 @@ public class AuctionServer extends ChannelMember {
      *
      * @return A string of all current bids.
      */
-    public String getListings() {
-        if (this.liveAuctions.isEmpty()) { //Check if there are bids
-            return "There are no listings.";
-        } else {
-            //Print a formatted table for the current bids and their visible details.
-            String separator = "------------------------------------------------------------------------------";
-            String listings = separator + "\n";
-            listings += String.format("|%-10s|%-11s|%-12s|%-40s|", "Auction ID", "Highest Bid", "Name", "Description") + "\n";
-            listings += separator + "\n";
-            for (int id : this.liveAuctions.keySet()) {
-                Auction a = this.liveAuctions.get(id);
-                listings += String.format("|%-10d|%-11.2f|%-12s|%-40s|", id, a.getCurrentPrice(), a.getBidderName(), a.getDescription()) + "\n";
-            }
-            listings += separator + "\n";
-            return listings;
+    private String listings() {
+        return Listings.frame(this.listingRows());
+    }
+
+    /**
+     * Gets the rows of the listing, one per auction.
+     *
+     * @return The rows of all current bids, sorted by ID.
+     */
+    private String listingRows() {
+        TreeMap<Integer, Auction> sorted = new TreeMap<>(); //Sort by ID so every replica lists auctions in the same order.
+        this.liveAuctions.forEach((a, id) -> sorted.put(id, a));
+        StringBuilder rows = new StringBuilder();
+        for (Map.Entry<Integer, Auction> e : sorted.entrySet()) {
+            rows.append(Listings.row(e.getKey(), e.getValue()));
         }
+        return rows.toString();
     }
 
     /**
@@ -227,10 +813,10 @@ public class AuctionServer extends ChannelMember {
             while (line != null) { //Read until no lines left
                 //Add auctions in accordance to csv file values
                 String[] parameters = line.split(",");
-                double startPrice = Double.parseDouble(parameters[0].trim());
+                long startPrice = Money.parse(parameters[0]);
                 String description = parameters[1];
-                double minPrice = Double.parseDouble(parameters[2].trim());
-                this.addAuction(new Auction("Test", startPrice, description, minPrice), i);
+                long minPrice = Money.parse(parameters[2]);
+                this.add(new Auction("Test", startPrice, description, minPrice), i);
                 line = reader.readLine();
                 i++;
             }
@@ -242,7 +828,23 @@ public class AuctionServer extends ChannelMember {
         }
     }
 
-    public String emailFromFile(String name) {
+    /**
+     * Replicated call to look up the stored email of a user.
+     *
+     * @param name The name of the user.
+     * @return A reply holding their email, or null if none is stored.
+     */
+    public Reply emailFromFile(String name) {
+        return this.reply(this.readEmail(name));
+    }
+
+    /**
+     * Reads the stored email of a user from their account details.
+     *
+     * @param name The name of the user.
+     * @return Their email, or null if none is stored.
+     */
+    private String readEmail(String name) {
         String userAccountPath = AuctionSecurity.ACCOUNT_PATH + name + "/";
         try {
             return Files.readAllLines(Paths.get(userAccountPath + "Details.csv")).get(0);
@@ -252,23 +854,121 @@ public class AuctionServer extends ChannelMember {
         return null;
     }
 
+    /**
+     * Streams a snapshot of the state to a joining server without stopping
+     * writes. The store is walked while changes are recorded in the journal,
+     * then the current state of every auction changed during the walk is sent
+     * as a catch-up section. Applying both gives the joiner a consistent image
+     * of the state as of the end of the transfer. The stream is written in
+     * the chunked SnapshotCodec format, so memory use is bounded by one chunk.
+     *
+     * @param output The stream to write the snapshot to.
+     * @throws Exception If the snapshot couldn't be written.
+     */
     @Override
     public void getState(OutputStream output) throws Exception {
         System.out.println("Getting state for a new node.");
-        synchronized (this.liveAuctions) { //Ensure no one changes state while we're sending it.
-            Util.objectToStream(new Object[]{this.incrementID, this.liveAuctions, this.checkSum}, new DataOutputStream(output));
+        ChangeJournal.Recording recording = this.journal.start(); //Start recording before the walk, so nothing is missed.
+        try (SnapshotCodec.Writer out = new SnapshotCodec.Writer(new BufferedOutputStream(output), SnapshotCodec.compressionEnabled())) {
+            try {
+                this.liveAuctions.forEach((a, id) -> writeEntry(out, id, a));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.endSection(); //End of the snapshot.
+            for (int round = 0; round < CATCH_UP_ROUNDS; round++) { //Resend auctions changed while we were sending.
+                ArrayList<Integer> changed = recording.drain();
+                if (changed.isEmpty()) {
+                    break;
+                }
+                for (int id : changed) {
+                    out.write(id, this.liveAuctions.get(id)); //A null auction means it has been removed.
+                }
+            }
+            out.endSection(); //End of the catch-up section.
+            synchronized (this.stateLock) {
+                out.finish(this.incrementID);
+            }
+        } finally {
+            this.journal.stop(recording);
+        }
+    }
+
+    /**
+     * Writes the whole state of this server for the write-ahead log to
+     * compact itself with.
+     *
+     * @param out The snapshot to write to.
+     * @throws IOException If the snapshot couldn't be written.
+     */
+    private void writeSnapshot(SnapshotCodec.Writer out) throws IOException {
+        try {
+            this.liveAuctions.forEach((a, id) -> writeEntry(out, id, a));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.endSection();
+        out.endSection(); //No catch-up section, the log holds any changes missed.
+        synchronized (this.stateLock) {
+            out.finish(this.incrementID);
+        }
+    }
+
+    /**
+     * Writes one auction of a snapshot.
+     *
+     * @param out The snapshot to write to.
+     * @param id The ID of the auction.
+     * @param a The auction.
+     * @throws UncheckedIOException If writing fails.
+     */
+    private static void writeEntry(SnapshotCodec.Writer out, int id, Auction a) {
+        try {
+            out.write(id, a);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Replaces the state of this server with a snapshot streamed by getState.
+     * Writes are held off until the whole snapshot is applied.
+     *
+     * @param input The stream to read the snapshot from.
+     * @throws Exception If the snapshot couldn't be read.
+     */
     @Override
     public void setState(InputStream input) throws Exception {
         System.out.println("Setting state");
-        synchronized (this.liveAuctions) { //Ensure no one accesses the state while we're setting it
-            Object[] state = (Object[]) Util.objectFromStream(new DataInputStream(input));
-            this.incrementID = (int) state[0];
+        boolean[] held = this.bucketLocks.lockAllExclusive();
+        try (SnapshotCodec.Reader in = new SnapshotCodec.Reader(new BufferedInputStream(input))) {
             this.liveAuctions.clear();
-            this.liveAuctions.putAll((HashMap<Integer, Auction>) state[1]);
-            this.checkSum = (long) state[2];
+            while (in.next()) { //The snapshot.
+                this.liveAuctions.put(in.id(), in.auction());
+            }
+            while (in.next()) { //Changes made while the snapshot was sent.
+                int id = in.id();
+                Auction a = in.auction();
+                if (a != null) {
+                    this.liveAuctions.put(id, a);
+                } else {
+                    Auction removed = this.liveAuctions.get(id);
+                    if (removed != null) {
+                        this.liveAuctions.remove(id, removed.getOwner());
+                    }
+                }
+            }
+            in.next(); //Read the trailer.
+            synchronized (this.stateLock) {
+                this.incrementID = in.watermark();
+            }
+            this.digest.clear(); //Rebuild the digest from the auctions received rather than trusting a sent one.
+            this.liveAuctions.forEach((a, id) -> this.digest.add(id, a));
+        } finally {
+            this.bucketLocks.unlockExclusive(held);
+        }
+        if (this.log != null) { //The old log no longer describes our state.
+            this.log.scheduleCheckpoint();
         }
         System.out.println(liveAuctions.size() + " auctions loaded from connection to cluster.");
     }
@@ -286,7 +986,7 @@ public class AuctionServer extends ChannelMember {
 
     /**
      * Handles a Message that is formatted as a command. Makes the server
-     * execute a command which cannot be done using the RPC channel.
+     * execute a command which cannot be done using an RPC.
      *
      * @param msg The command message detailing what must be done.
      */
@@ -295,8 +995,14 @@ public class AuctionServer extends ChannelMember {
             Object[] args = (Object[]) msg.getObject();
             Command command = (Command) args[0];
             switch (command) {
-                case SYNC:
-                    this.sync((Address) args[1]);
+                case SHARDS:
+                    @SuppressWarnings("unchecked") //Sent by the manager as this type.
+                    Map<Address, String> shards = (Map<Address, String>) args[1];
+                    synchronized (this.peersLock) {
+                        this.peerShards = shards;
+                        this.peersLock.notifyAll();
+                    }
+                    break;
                 default:
                     System.out.println("Got unknown command.");
             }
@@ -306,85 +1012,323 @@ public class AuctionServer extends ChannelMember {
     }
 
     /**
-     * Synchronises state of this auction server with the server that has the
-     * passed syncTarget address. Used by the replication manager when a de-sync
-     * occurs.
+     * Synchronises state of this auction server with another server. Used by
+     * the replication manager when a de-sync occurs. Only the buckets of
+     * auctions that differ are transferred; the whole state is only copied if
+     * that fails.
+     *
+     * @param target The address of the server to copy from.
+     */
+    public void sync(Address target) {
+        try {
+            System.out.println("Delta syncing with: " + target.toString());
+            int[] buckets = this.differingBuckets(target);
+            if (buckets.length > 0) {
+                MethodCall method = new MethodCall("getBuckets", new Object[]{buckets}, new Class<?>[]{int[].class});
+                Object[] delta = this.rpc.callRemoteMethod(target, method, this.syncOptions);
+                @SuppressWarnings("unchecked") //As returned by getBuckets.
+                HashMap<Integer, Auction> auctions = (HashMap<Integer, Auction>) delta[1];
+                this.applyBuckets(buckets, (int) delta[0], auctions);
+            }
+            System.out.println("Delta sync replaced " + buckets.length + " of " + StateDigest.BUCKETS + " buckets.");
+        } catch (Exception ex) {
+            Logger.getLogger(AuctionServer.class.getName()).log(Level.WARNING, "Delta sync failed, copying whole state.", ex);
+            this.fullSync(target);
+        }
+    }
+
+    /**
+     * Copies the whole state of another server over this one.
      *
      * @param syncTarget The address of the server to copy state from.
      */
-    public void sync(Address syncTarget) {
+    private void fullSync(Address syncTarget) {
         try {
             System.out.println("Syncing with: " + syncTarget.toString());
-            this.auctionChannel.getState(syncTarget, 5000);
+            this.channel.getState(syncTarget, 5000);
         } catch (Exception ex) {
             Logger.getLogger(AuctionServer.class.getName()).log(Level.SEVERE, "Error getting synchronized state.", ex);
         }
     }
 
     /**
-     * Updates check in reference to the given auction. Adds all unicode
-     * characters to the checksum, among adding prices multiplied by 100 to the
-     * checksum.
+     * Finds which buckets of auctions differ from another server by walking
+     * down both state digests from the root, only descending into nodes that
+     * differ.
+     *
+     * @param target The address of the other server.
+     * @return The buckets that differ.
+     * @throws Exception If the other server couldn't be asked for its digest.
+     */
+    private int[] differingBuckets(Address target) throws Exception {
+        int[] frontier = {StateDigest.ROOT};
+        while (true) {
+            MethodCall method = new MethodCall("getDigestNodes", new Object[]{frontier}, new Class<?>[]{int[].class});
+            long[] theirs = this.rpc.callRemoteMethod(target, method, this.syncOptions);
+            long[] ours = this.digest.nodes(frontier);
+            ArrayList<Integer> differing = new ArrayList<>();
+            for (int i = 0; i < frontier.length; i++) {
+                if (theirs[i] != ours[i]) {
+                    differing.add(frontier[i]);
+                }
+            }
+            if (differing.isEmpty() || StateDigest.isLeaf(differing.get(0))) { //All nodes of the frontier are on the same level.
+                int[] buckets = new int[differing.size()];
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = differing.get(i) - StateDigest.BUCKETS;
+                }
+                return buckets;
+            }
+            frontier = new int[differing.size() * 2];
+            for (int i = 0; i < differing.size(); i++) { //Descend into both children of every node that differs.
+                frontier[2 * i] = differing.get(i) * 2;
+                frontier[2 * i + 1] = differing.get(i) * 2 + 1;
+            }
+        }
+    }
+
+    /**
+     * Gets every auction in the passed buckets, so another server can repair
+     * just those buckets.
      *
-     * @param a The auction to update the checksum with.
+     * @param buckets The buckets wanted.
+     * @return The ID watermark of this server, followed by a map of every
+     * auction in the buckets.
      */
-    private void updateCheckSum(Auction a) {
-        this.updateCheckSum(new String[]{a.getBidderEmail(), a.getBidderName(), a.getDescription(), a.getOwner()});
-        this.updateCheckSum(a.getCurrentPrice());
-        this.updateCheckSum(a.getReservePrice());
+    public Object[] getBuckets(int[] buckets) {
+        boolean[] wanted = new boolean[StateDigest.BUCKETS];
+        for (int b : buckets) {
+            wanted[b] = true;
+        }
+        HashMap<Integer, Auction> auctions = new HashMap<>();
+        this.liveAuctions.forEach((a, id) -> {
+            if (wanted[StateDigest.bucketOf(id)]) {
+                auctions.put(id, a);
+            }
+        });
+        synchronized (this.stateLock) {
+            return new Object[]{this.incrementID, auctions};
+        }
+    }
+
+    /**
+     * Lists the IDs of every auction in the passed buckets, for another server
+     * to fetch a page at a time with getAuctionPage. The store is walked once
+     * for the whole list.
+     *
+     * @param buckets The buckets wanted.
+     * @return The IDs of the auctions in those buckets.
+     */
+    public int[] getBucketIDs(int[] buckets) {
+        boolean[] wanted = new boolean[StateDigest.BUCKETS];
+        for (int b : buckets) {
+            wanted[b] = true;
+        }
+        int[][] ids = {new int[64]};
+        int[] count = {0};
+        this.liveAuctions.forEach((a, id) -> {
+            if (wanted[StateDigest.bucketOf(id)]) {
+                if (count[0] == ids[0].length) {
+                    ids[0] = Arrays.copyOf(ids[0], count[0] * 2);
+                }
+                ids[0][count[0]++] = id;
+            }
+        });
+        return Arrays.copyOf(ids[0], count[0]);
     }
 
     /**
-     * Update checksum in reference to array is strings passed. Adds all the
-     * unicode values of the characters to the checksum.
+     * Gets a page of auctions, written in the chunked, checksummed
+     * SnapshotCodec format as one section and a trailer holding our ID
+     * watermark. Auctions removed since they were listed are written as
+     * removals.
      *
-     * @param toAdd The array of strings to add.
+     * @param ids The IDs of the auctions, at most PAGE_SIZE of them.
+     * @return The encoded page.
+     * @throws IOException If the page couldn't be written.
      */
-    private void updateCheckSum(String[] toAdd) {
-        for (String s : toAdd) {
-            for (int i = 0; i < s.length(); i++) {
-                this.checkSum += (int) s.charAt(i);
+    public byte[] getAuctionPage(int[] ids) throws IOException {
+        ByteArrayOutputStream page = new ByteArrayOutputStream();
+        try (SnapshotCodec.Writer out = new SnapshotCodec.Writer(page, SnapshotCodec.compressionEnabled())) {
+            for (int i = 0; i < ids.length && i < PAGE_SIZE; i++) {
+                out.write(ids[i], this.liveAuctions.get(ids[i]));
+            }
+            out.endSection();
+            synchronized (this.stateLock) {
+                out.finish(this.incrementID);
             }
         }
+        return page.toByteArray();
     }
 
     /**
-     * Update checksum in reference to the string passed. Adds all the unicode
-     * values of the characters to the checksum.
+     * Reads a page written by getAuctionPage.
      *
-     * @param toAdd The array of strings to add.
+     * @param page The encoded page.
+     * @param auctions The map to put the auctions of the page in. Removals
+     * are left out.
+     * @return The ID watermark of the server that wrote the page.
+     * @throws IOException If the page is corrupted.
      */
-    private void updateCheckSum(String toAdd) {
-        this.updateCheckSum(new String[]{toAdd});
+    static int readAuctionPage(byte[] page, Map<Integer, Auction> auctions) throws IOException {
+        try (SnapshotCodec.Reader in = new SnapshotCodec.Reader(new ByteArrayInputStream(page))) {
+            while (in.next()) {
+                if (in.auction() != null) {
+                    auctions.put(in.id(), in.auction());
+                }
+            }
+            in.next(); //Read the trailer.
+            return in.watermark();
+        }
     }
 
     /**
-     * Adds a double, which is assumed to a price in the auction server context,
-     * to the checksum by turning the price into an integer and adding it to the
-     * checksum.
+     * Replaces the contents of some buckets with the auctions of another
+     * server. Writes to those buckets are held off until the whole repair is
+     * applied, so no one sees a half-repaired bucket.
      *
-     * @param price The price to add to the checksum.
+     * @param buckets The buckets to replace.
+     * @param watermark The ID watermark of the other server.
+     * @param auctions Every auction the other server has in those buckets.
      */
-    private void updateCheckSum(double price) {
-        this.checkSum += (int) Math.floor(price * 100);
+    private void applyBuckets(int[] buckets, int watermark, HashMap<Integer, Auction> auctions) {
+        boolean[] held = this.bucketLocks.lockExclusive(buckets);
+        try {
+            boolean[] replaced = new boolean[StateDigest.BUCKETS];
+            for (int b : buckets) {
+                replaced[b] = true;
+            }
+            HashMap<Integer, Auction> stale = new HashMap<>();
+            this.liveAuctions.forEach((a, id) -> {
+                if (replaced[StateDigest.bucketOf(id)]) {
+                    stale.put(id, a);
+                }
+            });
+            long logged = 0;
+            for (Map.Entry<Integer, Auction> e : stale.entrySet()) { //Take out everything we had in those buckets.
+                int id = e.getKey();
+                if (this.liveAuctions.remove(id, e.getValue().getOwner()) != null) {
+                    this.digest.remove(id, e.getValue());
+                    this.journal.touch(id);
+                    logged = this.appendToLog(l -> l.remove(id));
+                }
+            }
+            for (Map.Entry<Integer, Auction> e : auctions.entrySet()) { //Then put in what they have.
+                int id = e.getKey();
+                Auction a = e.getValue();
+                this.liveAuctions.put(id, a);
+                this.digest.add(id, a);
+                this.journal.touch(id);
+                logged = this.appendToLog(l -> l.put(id, a));
+            }
+            synchronized (this.stateLock) {
+                this.incrementID = Math.max(this.incrementID, watermark);
+                int lease = this.incrementID;
+                logged = Math.max(logged, this.appendToLog(l -> l.lease(lease)));
+            }
+            this.awaitLogged(logged);
+        } finally {
+            this.bucketLocks.unlockExclusive(held);
+        }
     }
 
     /**
-     * Adds an integer to the checksum.
+     * Gets the root of this auction server's state digest.
      *
-     * @param The integer to add to the checksum.
+     * @return A digest representing the state of the server as a whole.
      */
-    private void updateCheckSum(int integer) {
-        this.checkSum += integer;
+    public long getStateDigest() {
+        return this.digest.root();
     }
 
     /**
-     * Gets the checksum for this auction servers state.
+     * Gets nodes of this auction server's state digest, so another server can
+     * walk down from the root to find which buckets of auctions differ.
      *
-     * @return A checksum representing the state of the server as a whole.
+     * @param nodes The indexes of the nodes to get.
+     * @return The value of each node, in the same order.
+     */
+    public long[] getDigestNodes(int[] nodes) {
+        return this.digest.nodes(nodes);
+    }
+
+    /**
+     * Dispatches RPC requests to the server, answering sequenced calls
+     * asynchronously: a call arriving ahead of its turn is queued by the
+     * Sequencer and answered once it has run, so threads delivering requests
+     * are never parked waiting for a gap in the sequence to close. Every
+     * other call is invoked and answered on the thread delivering it, as
+     * usual.
+     */
+    private static class SequencedDispatcher extends RpcDispatcher {
+
+        SequencedDispatcher(JChannel channel, AuctionServer listener) {
+            super(channel, listener, listener, null);
+            this.asyncDispatching(true);
+        }
+
+        @Override
+        public void handle(Message req, Response rsp) throws Exception {
+            Object server = this.server_obj;
+            if (server == null) { //Not serving yet, as RpcDispatcher does.
+                if (rsp != null) {
+                    rsp.send((Object) null, false);
+                }
+                return;
+            }
+            MethodCall call = (MethodCall) req.getObject();
+            if ("sequenced".equals(call.getName())) {
+                Object[] args = call.getArgs();
+                ((AuctionServer) server).sequenced((long) args[0], (long) args[1], (String) args[2], (Object[]) args[3], reply -> {
+                    if (rsp != null) {
+                        rsp.send(reply, false);
+                    }
+                });
+                return;
+            }
+            Object result = call.invoke(server);
+            if (rsp != null) {
+                rsp.send(result, false);
+            }
+        }
+    }
+
+    /**
+     * Applies the changes read back from the write-ahead log. Runs before the
+     * server joins the cluster, so no locks are needed.
      */
-    public long getCheckSum() {
-        return this.checkSum;
+    private class LogReplayer implements WriteAheadLog.Replayer {
+
+        @Override
+        public void put(int id, Auction a) {
+            liveAuctions.put(id, a);
+            this.lease(id + 1);
+        }
+
+        @Override
+        public void add(int id, Auction a) {
+            liveAuctions.putIfAbsent(id, a);
+            this.lease(id + 1);
+        }
+
+        @Override
+        public void remove(int id) {
+            Auction removed = liveAuctions.get(id);
+            if (removed != null) {
+                liveAuctions.remove(id, removed.getOwner());
+            }
+        }
+
+        @Override
+        public boolean bid(int id, Bid bid) {
+            liveAuctions.placeBid(id, bid); //Only takes if it beats the bid replayed so far.
+            return liveAuctions.containsKey(id);
+        }
+
+        @Override
+        public void lease(int watermark) {
+            incrementID = Math.max(incrementID, watermark);
+        }
     }
 
 }
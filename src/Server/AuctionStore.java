@@ -0,0 +1,134 @@
+package Server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * A concurrent store of all live auctions on an AuctionServer, keyed by
+ * auction ID. Implementations decide how auctions are laid out in memory, but
+ * all of them must be safe to use from many threads at once.
+ *
+ * @author DominicWild
+ */
+public interface AuctionStore {
+
+    /**
+     * Gets the auction with the specified ID.
+     *
+     * @param id The ID of the auction.
+     * @return The auction, or null if no auction has that ID.
+     */
+    public Auction get(int id);
+
+    /**
+     * Checks if an auction with the specified ID exists.
+     *
+     * @param id The ID to check.
+     * @return True if an auction is stored under that ID.
+     */
+    public boolean containsKey(int id);
+
+    /**
+     * Adds an auction under an ID, unless that ID is already taken.
+     *
+     * @param id The ID to store the auction under.
+     * @param a The auction to store.
+     * @return True if the auction was added, false if the ID was taken.
+     */
+    public boolean putIfAbsent(int id, Auction a);
+
+    /**
+     * Stores an auction under an ID, replacing any auction already there.
+     *
+     * @param id The ID to store the auction under.
+     * @param a The auction to store.
+     */
+    public void put(int id, Auction a);
+
+    /**
+     * Removes an auction, but only if it is owned by the specified person. The
+     * ownership check and removal happen atomically, and bids racing with the
+     * removal cannot succeed afterwards.
+     *
+     * @param id The ID of the auction to remove.
+     * @param owner The person attempting the removal.
+     * @return The removed auction, or null if it doesn't exist or isn't owned
+     * by the remover.
+     */
+    public Auction remove(int id, String owner);
+
+    /**
+     * Checks if a bid of the passed amount would currently beat the leading
+     * bid of an auction. Used to reject losing bids cheaply.
+     *
+     * @param id The ID of the auction.
+     * @param amount The amount of the bid, in cents.
+     * @return True if the auction exists and the amount beats its leading bid.
+     */
+    public boolean outbids(int id, long amount);
+
+    /**
+     * Makes the passed bid the leading bid of an auction, if it beats the bid
+     * currently leading.
+     *
+     * @param id The ID of the auction.
+     * @param bid The bid to place.
+     * @return The bid that was displaced, or null if the auction doesn't exist
+     * or the bid didn't win.
+     */
+    public Bid placeBid(int id, Bid bid);
+
+    /**
+     * Gets the number of auctions in the store.
+     *
+     * @return The number of auctions.
+     */
+    public int size();
+
+    /**
+     * Removes all auctions from the store.
+     */
+    public void clear();
+
+    /**
+     * Visits every auction in the store. Iteration is weakly consistent: it
+     * never blocks writers for long, and changes made during the iteration may
+     * or may not be seen.
+     *
+     * @param visitor Called with each auction and its ID.
+     */
+    public void forEach(ObjIntConsumer<Auction> visitor);
+
+    /**
+     * Checks if there are no auctions in the store.
+     *
+     * @return True if the store is empty.
+     */
+    public default boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * Adds all the passed auctions to the store.
+     *
+     * @param auctions A map of auction IDs to auctions.
+     */
+    public default void putAll(Map<Integer, Auction> auctions) {
+        for (Map.Entry<Integer, Auction> e : auctions.entrySet()) {
+            this.put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Copies the store into a HashMap, for example to transfer it to another
+     * server.
+     *
+     * @return A map of auction IDs to auctions.
+     */
+    public default HashMap<Integer, Auction> toHashMap() {
+        HashMap<Integer, Auction> map = new HashMap<>();
+        this.forEach((a, id) -> map.put(id, a));
+        return map;
+    }
+}
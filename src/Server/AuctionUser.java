@@ -2,6 +2,7 @@ package Server;
 
 
 import ServiceInterfaces.AuctionUserInterface;
+import ServiceInterfaces.Money;
 import java.rmi.RemoteException;
 
 /**
@@ -11,6 +12,8 @@ import java.rmi.RemoteException;
  */
 public class AuctionUser extends NamedObject implements AuctionUserInterface {
 
+    private static final long serialVersionUID = 1L;
+
     private ReplicationManager server; //The server this implementation will run on.
 
     /**
@@ -27,19 +30,24 @@ public class AuctionUser extends NamedObject implements AuctionUserInterface {
     /**
      * Places a bid on an auction with the specified auction id.
      * @param auctionID The id of the auction to place the bid on.
-     * @param amount The amount to bid.
+     * @param amount The amount to bid, in cents.
      * @return An output on whether the bid was successful or not.
      */
     @Override
-    public String bid(int auctionID, double amount) throws RemoteException {
+    public String bid(int auctionID, long amount) throws RemoteException {
         String email = this.server.emailFromFile(this.owner);
         try {
             this.noteUse();
-            if (this.server.placeBid(auctionID, amount, this.owner, email)) { //See if bid was successfully placed on server.
-                System.out.println("Bid of " + amount + " has successfully been placed on auction " + auctionID + " by " + this.owner + " with email " + email);
-                return "Your bid of " + amount + " has successfully been placed on auction " + auctionID;
-            } else {
-                return "Your bid has failed to placed on auction " + auctionID;
+            switch (this.server.placeBid(auctionID, amount, this.owner, email)) { //The servers say why a bid failed, so no second call is needed.
+                case PLACED:
+                    System.out.println("Bid of " + Money.format(amount) + " has successfully been placed on auction " + auctionID + " by " + this.owner + " with email " + email);
+                    return "Your bid of " + Money.format(amount) + " has successfully been placed on auction " + auctionID;
+                case NO_AUCTION:
+                    return "The auction that was attempted to be bid on has either been closed or doesn't exist.";
+                case OUTBID:
+                    return "Your bid has failed to placed on auction " + auctionID;
+                default:
+                    return "Your bid on auction " + auctionID + " couldn't be confirmed, please check the listings before bidding again.";
             }
         } catch (NullPointerException e) {
             return "The auction that was attempted to be bid on has either been closed or doesn't exist.";
@@ -0,0 +1,87 @@
+package Server;
+
+import java.io.Serializable;
+
+/**
+ * An immutable snapshot of the leading bid on an auction. An auction swaps its
+ * whole Bid at once, so the price, name and email of the highest bidder are
+ * always seen together.
+ *
+ * @author DominicWild
+ */
+public final class Bid implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long price;               //The amount bid, in cents.
+    private final String bidderName;        //The name of the bidder.
+    private final String bidderEmail;       //The email of the bidder.
+    private final boolean closed;           //Whether the auction has closed, after which no bid may replace this one.
+
+    /**
+     * Creates a bid that has been placed on an open auction.
+     *
+     * @param price The amount bid, in cents.
+     * @param bidderName The name of the bidder.
+     * @param bidderEmail The email of the bidder.
+     */
+    public Bid(long price, String bidderName, String bidderEmail) {
+        this(price, bidderName, bidderEmail, false);
+    }
+
+    private Bid(long price, String bidderName, String bidderEmail, boolean closed) {
+        this.price = price;
+        this.bidderName = bidderName;
+        this.bidderEmail = bidderEmail;
+        this.closed = closed;
+    }
+
+    /**
+     * Gets the amount bid.
+     * @return The amount bid, in cents.
+     */
+    public long getPrice() {
+        return price;
+    }
+
+    /**
+     * Gets the name of the bidder.
+     * @return The name of the bidder.
+     */
+    public String getBidderName() {
+        return bidderName;
+    }
+
+    /**
+     * Gets the email of the bidder.
+     * @return The email of the bidder.
+     */
+    public String getBidderEmail() {
+        return bidderEmail;
+    }
+
+    /**
+     * Checks if this is the final bid of a closed auction.
+     * @return True if the auction this bid belongs to has closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Checks if this bid would replace the passed leading bid.
+     * @param leading The current leading bid.
+     * @return True if the leading bid is still open and this bid is higher.
+     */
+    public boolean beats(Bid leading) {
+        return !leading.closed && leading.price < this.price;
+    }
+
+    /**
+     * Makes a copy of this bid that marks the auction as closed.
+     * @return The closed copy of this bid.
+     */
+    public Bid close() {
+        return new Bid(price, bidderName, bidderEmail, true);
+    }
+}
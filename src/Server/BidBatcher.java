@@ -0,0 +1,254 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Gathers bids placed at about the same time into batches, so a storm of bids
+ * costs one replicated call per batch rather than one per bid.
+ *
+ * A batch is shipped once it is full, or once the first bid in it has waited
+ * the batch window. While a batch is being shipped new bids queue up, so under
+ * load batches grow by themselves without waiting for the window. A few
+ * batches may be in flight at once; servers still apply them in the order
+ * they were sent, as calls from one sender are delivered in order, or in
+ * sequenced mode in the order they were numbered. Within a
+ * batch only the highest bid on each auction is sent, the earliest if tied:
+ * every other bid on that auction loses to it whether it succeeds or not.
+ *
+ * A bidder waits no longer than a set timeout for its outcome, and is told
+ * the bid failed if it runs out; the bid may still be applied afterwards, as
+ * with any replicated call that times out. Should the shipping thread ever
+ * stop, every bid waiting on it fails at once.
+ *
+ * The window, size and batches in flight are set with the system properties
+ * auction.bidbatch.window, in milliseconds, auction.bidbatch.size and
+ * auction.bidbatch.inflight.
+ *
+ * @author DominicWild
+ */
+public class BidBatcher {
+
+    public static final String WINDOW_PROPERTY = "auction.bidbatch.window";    //System property setting milliseconds a bid may wait for others.
+    public static final String SIZE_PROPERTY = "auction.bidbatch.size";        //System property setting the most bids in a batch.
+    public static final String IN_FLIGHT_PROPERTY = "auction.bidbatch.inflight"; //System property setting the most batches awaiting replies.
+
+    private static final int DEFAULT_WINDOW = 2;                        //Milliseconds a bid waits for others if not set.
+    private static final int DEFAULT_SIZE = 128;                        //Most bids in a batch if not set.
+    private static final int DEFAULT_IN_FLIGHT = 4;                     //Most batches awaiting replies if not set.
+
+    private final Shipper shipper;                                      //Sends a batch to the AuctionServers.
+    private final long window;                                          //Nanoseconds the first bid of a batch waits for others.
+    private final int size;                                             //Most bids in a batch.
+    private final LinkedBlockingQueue<PendingBid> queue = new LinkedBlockingQueue<>(); //Bids waiting to be batched.
+    private final Semaphore inFlight;                                   //Batches that may still be sent before replies return.
+    private final long timeout;                                         //Milliseconds a bidder waits for its outcome.
+    private volatile boolean stopped = false;                           //Whether the shipping thread has stopped.
+
+    /**
+     * Sends a batch of bids to the AuctionServers, which apply them in order.
+     */
+    public interface Shipper {
+
+        /**
+         * @return A future completed with the outcome of each bid, or null if
+         * the servers couldn't agree.
+         */
+        CompletableFuture<BidOutcome[]> ship(int[] auctionIDs, long[] amounts, String[] names, String[] emails);
+    }
+
+    /**
+     * Creates a batcher and starts its shipping thread, reading its window and
+     * size from system properties.
+     *
+     * @param shipper Sends each batch to the AuctionServers.
+     * @param timeout Milliseconds a bidder waits for its outcome.
+     */
+    public BidBatcher(Shipper shipper, long timeout) {
+        this.shipper = shipper;
+        this.timeout = timeout;
+        this.window = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger(WINDOW_PROPERTY, DEFAULT_WINDOW));
+        this.size = Math.max(1, Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+        this.inFlight = new Semaphore(Math.max(1, Integer.getInteger(IN_FLIGHT_PROPERTY, DEFAULT_IN_FLIGHT)));
+        Thread t = new Thread(this::run, "bid-batcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Places a bid as part of the next batch, waiting for its outcome.
+     *
+     * @param auctionID The id of the auction to bid on.
+     * @param amount The amount to bid, in cents.
+     * @param name The name of the bidder.
+     * @param email The email of the bidder.
+     * @return The outcome of the bid, FAILED if it didn't arrive within the
+     * timeout.
+     */
+    public BidOutcome placeBid(int auctionID, long amount, String name, String email) {
+        PendingBid bid = new PendingBid(auctionID, amount, name, email);
+        this.queue.add(bid);
+        if (this.stopped) { //No one is left to ship it.
+            this.failQueued();
+        }
+        try {
+            return bid.outcome.get(this.timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return BidOutcome.FAILED;
+        } catch (ExecutionException e) {
+            return BidOutcome.FAILED;
+        } catch (TimeoutException e) {
+            Logger.getLogger(BidBatcher.class.getName()).log(Level.WARNING, "Bid on auction {0} timed out waiting for its batch.", auctionID);
+            return BidOutcome.FAILED;
+        }
+    }
+
+    /**
+     * Gathers and ships batches for as long as the manager runs. If the
+     * thread is interrupted, the batch being gathered and every queued bid
+     * fail, as do bids placed after it stops.
+     */
+    private void run() {
+        ArrayList<PendingBid> batch = new ArrayList<>();
+        try {
+            this.gather(batch);
+        } finally {
+            this.stopped = true;
+            for (PendingBid bid : batch) {
+                bid.outcome.complete(BidOutcome.FAILED);
+            }
+            this.failQueued();
+        }
+    }
+
+    /**
+     * Fails every bid still waiting to be batched.
+     */
+    private void failQueued() {
+        PendingBid bid;
+        while ((bid = this.queue.poll()) != null) {
+            bid.outcome.complete(BidOutcome.FAILED);
+        }
+    }
+
+    /**
+     * Gathers and ships batches until interrupted.
+     *
+     * @param batch Holds the batch being gathered, so its bids can be failed
+     * if gathering stops part way.
+     */
+    private void gather(ArrayList<PendingBid> batch) {
+        while (true) {
+            batch.clear();
+            AtomicBoolean permit = new AtomicBoolean(); //Whether this batch's slot in flight has been given back.
+            try {
+                this.inFlight.acquire(); //Bids keep queueing while we wait, making the next batch bigger.
+                batch.add(this.queue.take());
+                long deadline = System.nanoTime() + this.window;
+                while (batch.size() < this.size) {
+                    long left = deadline - System.nanoTime();
+                    PendingBid next = left > 0 ? this.queue.poll(left, TimeUnit.NANOSECONDS) : this.queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                this.ship(batch, permit);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException ex) { //Never let one bad batch stop bidding.
+                Logger.getLogger(BidBatcher.class.getName()).log(Level.SEVERE, "Error shipping bid batch.", ex);
+                for (PendingBid bid : batch) {
+                    bid.outcome.complete(BidOutcome.FAILED);
+                }
+                this.release(permit);
+            }
+        }
+    }
+
+    /**
+     * Gives back a batch's slot in flight, once however many times it is
+     * called.
+     *
+     * @param permit Whether the slot has been given back, for this batch.
+     */
+    private void release(AtomicBoolean permit) {
+        if (permit.compareAndSet(false, true)) {
+            this.inFlight.release();
+        }
+    }
+
+    /**
+     * Sends the leading bid on each auction of a batch, completing every bid
+     * with its outcome once the servers reply.
+     *
+     * @param batch The bids, in the order they were placed.
+     * @param permit Whether the batch's slot in flight has been given back.
+     */
+    private void ship(ArrayList<PendingBid> batch, AtomicBoolean permit) {
+        HashMap<Integer, Integer> slots = new HashMap<>(); //Where each auction's leading bid is in the batch sent.
+        ArrayList<PendingBid> sent = new ArrayList<>();
+        for (PendingBid bid : batch) { //Keep the order bids were placed in.
+            Integer slot = slots.get(bid.auctionID);
+            if (slot == null) {
+                slots.put(bid.auctionID, sent.size());
+                sent.add(bid);
+            } else if (bid.amount > sent.get(slot).amount) {
+                sent.get(slot).outcome.complete(BidOutcome.OUTBID); //Outbid within the batch.
+                sent.set(slot, bid);
+            } else {
+                bid.outcome.complete(BidOutcome.OUTBID);
+            }
+        }
+        int n = sent.size();
+        int[] auctionIDs = new int[n];
+        long[] amounts = new long[n];
+        String[] names = new String[n];
+        String[] emails = new String[n];
+        for (int i = 0; i < n; i++) {
+            PendingBid bid = sent.get(i);
+            auctionIDs[i] = bid.auctionID;
+            amounts[i] = bid.amount;
+            names[i] = bid.name;
+            emails[i] = bid.email;
+        }
+        this.shipper.ship(auctionIDs, amounts, names, emails).whenComplete((outcomes, ex) -> {
+            if (ex != null) {
+                Logger.getLogger(BidBatcher.class.getName()).log(Level.SEVERE, "Bid batch failed.", ex);
+            }
+            for (int i = 0; i < n; i++) {
+                sent.get(i).outcome.complete(outcomes != null && i < outcomes.length ? outcomes[i] : BidOutcome.FAILED);
+            }
+            this.release(permit);
+        });
+    }
+
+    /**
+     * A bid waiting for its batch to be shipped.
+     */
+    private static class PendingBid {
+
+        private final int auctionID;                                    //The id of the auction bid on.
+        private final long amount;                                      //The amount bid, in cents.
+        private final String name;                                      //The name of the bidder.
+        private final String email;                                     //The email of the bidder.
+        private final CompletableFuture<BidOutcome> outcome = new CompletableFuture<>(); //The outcome of the bid.
+
+        PendingBid(int auctionID, long amount, String name, String email) {
+            this.auctionID = auctionID;
+            this.amount = amount;
+            this.name = name;
+            this.email = email;
+        }
+    }
+}
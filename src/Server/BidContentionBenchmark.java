@@ -0,0 +1,131 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures bidding on one hot auction. For each engine thousands of threads
+ * are started in this process and all bid on the same auction at once, the
+ * way AuctionServer places bids: the cheap outbids check first, then placeBid.
+ * Every thread bids a rising run of prices, so bids keep winning and racing
+ * each other right to the end. Afterwards the auction must hold the highest
+ * price bid, or the run is marked as failed.
+ *
+ * The engines are the heap store, whose auctions swap in bids with a
+ * compare-and-set, the columnar store, which takes its segment's write lock,
+ * and monitor, the heap store behind one lock per auction as bids were placed
+ * before.
+ *
+ * Usage: java Server.BidContentionBenchmark [engine...], benchmarking every
+ * engine if none are named. The number of threads and bids per thread are set
+ * with the system properties bench.threads and bench.bids.
+ *
+ * @author DominicWild
+ */
+public class BidContentionBenchmark {
+
+    private static final int THREADS = Integer.getInteger("bench.threads", 2000);  //Threads bidding at once.
+    private static final int BIDS = Integer.getInteger("bench.bids", 500);          //Bids placed by each thread.
+    private static final int AUCTION_ID = 1;                                        //The auction every thread bids on.
+    private static final List<String> ENGINES = Arrays.asList("heap", "columnar", "monitor"); //Engines benchmarked if none are named.
+
+    public static void main(String[] args) throws Exception {
+        List<String> engines = args.length > 0 ? Arrays.asList(args) : ENGINES;
+        ArrayList<String> results = new ArrayList<>();
+        for (String engine : engines) {
+            benchmark(engine); //Warm up.
+            results.add(benchmark(engine));
+        }
+        System.out.println();
+        System.out.println(String.format("%-10s|%14s|%10s|%10s|%10s|%8s", "Engine", "Bids/sec", "Won", "Bid p50", "Bid p99", "Final"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Benchmarks one engine.
+     *
+     * @param engine The name of the engine.
+     * @return A row of the results table.
+     * @throws InterruptedException If interrupted waiting for the bidders.
+     */
+    private static String benchmark(String engine) throws InterruptedException {
+        AuctionStore store = "columnar".equals(engine) ? new ColumnarAuctionStore() : new HeapAuctionStore();
+        store.put(AUCTION_ID, new Auction("seller", "Hot item", 0, new Bid(0, null, null)));
+        Bidder bidder;
+        if ("monitor".equals(engine)) {
+            Object lock = new Object();
+            bidder = bid -> {
+                synchronized (lock) {
+                    return store.outbids(AUCTION_ID, bid.getPrice()) && store.placeBid(AUCTION_ID, bid) != null;
+                }
+            };
+        } else if ("heap".equals(engine) || "columnar".equals(engine)) {
+            bidder = bid -> store.outbids(AUCTION_ID, bid.getPrice()) && store.placeBid(AUCTION_ID, bid) != null;
+        } else {
+            throw new IllegalArgumentException("Unknown engine " + engine + ".");
+        }
+
+        long[] latencies = new long[THREADS * BIDS];
+        AtomicInteger won = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            int first = t;
+            threads[t] = new Thread(() -> {
+                String name = "bidder" + first;
+                String email = name + "@example.com";
+                int wins = 0;
+                ready.countDown();
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int i = 0; i < BIDS; i++) {
+                    long price = (long) i * THREADS + first + 1; //Every thread's prices interleave, so all keep winning now and then.
+                    long begin = System.nanoTime();
+                    if (bidder.bid(new Bid(price, name, email))) {
+                        wins++;
+                    }
+                    latencies[first * BIDS + i] = System.nanoTime() - begin;
+                }
+                won.addAndGet(wins);
+            }, "bidder-" + t);
+            threads[t].start();
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        long highest = (long) THREADS * BIDS;
+        boolean correct = store.get(AUCTION_ID).getLeadingBid().getPrice() == highest;
+        Arrays.sort(latencies);
+        return String.format("%-10s|%14.0f|%10d|%8.2fus|%8.2fus|%8s", engine, latencies.length / seconds, won.get(),
+                latencies[latencies.length / 2] / 1e3, latencies[latencies.length * 99 / 100] / 1e3, correct ? "ok" : "WRONG");
+    }
+
+    /**
+     * Places a bid through one engine.
+     */
+    private interface Bidder {
+
+        /**
+         * Places a bid on the benchmark's auction.
+         *
+         * @param bid The bid.
+         * @return True if the bid became the leading bid.
+         */
+        public boolean bid(Bid bid);
+    }
+}
@@ -0,0 +1,14 @@
+package Server;
+
+/**
+ * Enumerations to represent the outcome of a bid, so a bidder can be told why
+ * a bid failed without asking the servers about the auction again.
+ *
+ * @author DominicWild
+ */
+public enum BidOutcome {
+    PLACED,     //The bid became the leading bid.
+    OUTBID,     //The auction already had a bid at least as high.
+    NO_AUCTION, //No live auction has that id, it has closed or never existed.
+    FAILED;     //The servers couldn't agree on an outcome in time. The bid may still be applied.
+}
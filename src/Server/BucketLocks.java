@@ -0,0 +1,88 @@
+package Server;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks striped over the buckets of the state digest. Writes to an
+ * auction hold its stripe's shared lock, so they never wait on each other.
+ * Repairs that replace whole buckets hold the exclusive locks of just those
+ * buckets' stripes, so the repair is applied atomically while writes to every
+ * other bucket carry on.
+ *
+ * @author DominicWild
+ */
+public class BucketLocks {
+
+    private static final int STRIPES = 64;             //Number of locks buckets are spread over. Must be a power of two.
+
+    private final ReentrantReadWriteLock[] locks;       //The lock of each stripe.
+
+    /**
+     * Creates the locks for every stripe.
+     */
+    public BucketLocks() {
+        this.locks = new ReentrantReadWriteLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            this.locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Gets the shared lock to hold while changing an auction.
+     *
+     * @param id The ID of the auction being changed.
+     * @return The shared lock of its bucket's stripe.
+     */
+    public Lock sharedFor(int id) {
+        return this.locks[StateDigest.bucketOf(id) & (STRIPES - 1)].readLock();
+    }
+
+    /**
+     * Takes the exclusive locks of every stripe covering the passed buckets.
+     * Locks are always taken in stripe order, so two callers cannot deadlock.
+     *
+     * @param buckets The buckets to lock.
+     * @return The stripes that were locked, to pass to unlockExclusive.
+     */
+    public boolean[] lockExclusive(int[] buckets) {
+        boolean[] held = new boolean[STRIPES];
+        for (int b : buckets) {
+            held[b & (STRIPES - 1)] = true;
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            if (held[i]) {
+                this.locks[i].writeLock().lock();
+            }
+        }
+        return held;
+    }
+
+    /**
+     * Takes the exclusive lock of every stripe, stopping all writes, for
+     * replacing the whole state at once.
+     *
+     * @return The stripes that were locked, to pass to unlockExclusive.
+     */
+    public boolean[] lockAllExclusive() {
+        boolean[] held = new boolean[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            this.locks[i].writeLock().lock();
+            held[i] = true;
+        }
+        return held;
+    }
+
+    /**
+     * Releases exclusive locks taken by lockExclusive.
+     *
+     * @param held The stripes returned by lockExclusive.
+     */
+    public void unlockExclusive(boolean[] held) {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            if (held[i]) {
+                this.locks[i].writeLock().unlock();
+            }
+        }
+    }
+}
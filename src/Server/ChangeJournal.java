@@ -0,0 +1,80 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records which auctions change while snapshots of the state are being taken.
+ * A snapshot is taken by walking the store without stopping writers, so it may
+ * miss changes made during the walk. Each snapshot therefore starts a
+ * recording first, and afterwards sends the current state of every auction
+ * recorded. Replaying those on top of the walked snapshot gives a consistent
+ * point-in-time image.
+ *
+ * @author DominicWild
+ */
+public class ChangeJournal {
+
+    private final CopyOnWriteArrayList<Recording> recordings = new CopyOnWriteArrayList<>(); //Snapshots in progress.
+
+    /**
+     * Starts recording changes for a new snapshot.
+     *
+     * @return The recording, which must be passed to stop when done.
+     */
+    public Recording start() {
+        Recording r = new Recording();
+        this.recordings.add(r);
+        return r;
+    }
+
+    /**
+     * Stops a recording.
+     *
+     * @param r The recording to stop.
+     */
+    public void stop(Recording r) {
+        this.recordings.remove(r);
+    }
+
+    /**
+     * Notes that an auction changed. Must be called after the change is made.
+     * Costs a single read when no snapshot is in progress.
+     *
+     * @param id The ID of the auction that changed.
+     */
+    public void touch(int id) {
+        if (!this.recordings.isEmpty()) {
+            for (Recording r : this.recordings) {
+                r.changed.add(id);
+            }
+        }
+    }
+
+    /**
+     * The IDs of auctions changed since a snapshot started.
+     */
+    public static class Recording {
+
+        private final Set<Integer> changed = ConcurrentHashMap.newKeySet();   //IDs changed and not yet drained.
+
+        /**
+         * Takes every ID recorded so far, leaving the recording empty to
+         * collect further changes.
+         *
+         * @return The IDs of auctions changed since the last drain.
+         */
+        public ArrayList<Integer> drain() {
+            ArrayList<Integer> ids = new ArrayList<>();
+            Iterator<Integer> it = this.changed.iterator();
+            while (it.hasNext()) {
+                ids.add(it.next());
+                it.remove();
+            }
+            return ids;
+        }
+    }
+}
@@ -1,9 +1,16 @@
 package Server;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.jgroups.Address;
 import org.jgroups.JChannel;
 import org.jgroups.ReceiverAdapter;
+import org.jgroups.blocks.RequestOptions;
 import org.jgroups.blocks.RpcDispatcher;
 import org.jgroups.protocols.UDP;
 
@@ -15,41 +22,131 @@ import org.jgroups.protocols.UDP;
 public abstract class ChannelMember extends ReceiverAdapter {
 
     /**
+     * The basic stack, used if no profile can be loaded.
      * UDP only needs to send 1 packet to multicast, 
      * NACKACK2 maintains FIFO ordering, 
+     * UNICAST3 retransmits and orders calls sent to only some members,
      * FD_SOCK is a heartbeat which makes sure all clients on connection are alive, 
      * GMS handles new computers joining the JGroup channel (membership),
      * STATE_TRANSFER handles delivering of state between nodes.
      */
-    public static final String PROTOCOL_STACK = "UDP:PING:pbcast.NAKACK2:FD_SOCK:pbcast.GMS:pbcast.STATE_TRANSFER";
+    public static final String PROTOCOL_STACK = "UDP:PING:pbcast.NAKACK2:UNICAST3:FD_SOCK:pbcast.GMS:pbcast.STATE_TRANSFER";
 
-    public static final String CHANNEL_AUCTION_NAME = "AuctionSystem";          //Name of Message channel
-    public static final String CHANNEL_RPC_NAME = "AuctionSystem_RPC";          //Name of RPC channel.
+    public static final String STACK_PROPERTY = "auction.stack";                //System property choosing the protocol stack profile.
+    public static final String STACK_FILE_PROPERTY = "auction.stack.file";      //System property naming a file of stack profiles to use instead.
+    public static final String STACK_RESOURCE = "stacks.properties";            //Stack profiles shipped on the classpath, next to this class.
+    private static final String DEFAULT_PROFILE = "low-latency";                //Profile used if not set.
 
-    protected JChannel auctionChannel;                                          //Channel for sending messages
-    protected JChannel rpcChannel;                                              //Channel for sending RPC requests
+    public static final String CHANNEL_NAME = "AuctionSystem";                  //Name of the group channel.
+
+    protected JChannel channel;                                                 //Channel for sending messages, RPC requests and state.
     protected RpcDispatcher rpc;                                                //RPC object to distribute and recieve RPC requests.
 
+    /**
+     * Joins the group channel. Messages, RPC requests and state transfers all
+     * share one channel: the dispatcher takes the RPC requests and passes the
+     * rest, with views and state, to this member. RPC requests are answered
+     * as soon as a server object is set on the dispatcher.
+     */
     protected void joinGroupChannel() {
         try {
-            this.auctionChannel = new JChannel(PROTOCOL_STACK);
-            this.rpcChannel = new JChannel(PROTOCOL_STACK);
-            this.auctionChannel.getProtocolStack().getBottomProtocol().setValue("log_discard_msgs", false);
-            this.rpcChannel.getProtocolStack().getBottomProtocol().setValue("log_discard_msgs", false);
-            this.auctionChannel.setDiscardOwnMessages(true);
-            this.rpcChannel.setDiscardOwnMessages(true);
-
-            this.auctionChannel.setReceiver(this);
+            this.channel = new JChannel(protocolStack());
+            this.channel.getProtocolStack().getBottomProtocol().setValue("log_discard_msgs", false);
+            this.channel.setDiscardOwnMessages(true);
 
-            this.rpc = new RpcDispatcher();
-            this.rpc.setChannel(rpcChannel);
+            this.rpc = this.createDispatcher();
 
-            this.rpcChannel.connect(CHANNEL_RPC_NAME);
-            this.auctionChannel.connect(CHANNEL_AUCTION_NAME);
+            this.channel.connect(CHANNEL_NAME);
 
         } catch (Exception ex) {
             Logger.getLogger(ReplicationManager.class.getName()).log(Level.SEVERE, "Error within creating JChannel.", ex);
         }
     }
 
+    /**
+     * Creates the dispatcher for RPC requests on the channel, passing
+     * everything else to this member.
+     *
+     * @return The dispatcher, with no server object set yet.
+     */
+    protected RpcDispatcher createDispatcher() {
+        return new RpcDispatcher(this.channel, this, this, null);
+    }
+
+    /**
+     * Sets up options for a call to some members of the channel. A call to
+     * every other member is multicast, so it is delivered in the same order
+     * everywhere; a call to only some is sent to each of them alone rather
+     * than to everyone with the rest ignoring it.
+     *
+     * @param options The options of the call.
+     * @param targets The members the call is for.
+     * @return Options sending the call to just the targets.
+     */
+    protected RequestOptions toTargets(RequestOptions options, Collection<Address> targets) {
+        boolean everyone = true;
+        for (Address member : this.channel.getView().getMembers()) {
+            if (!member.equals(this.channel.getAddress()) && !targets.contains(member)) {
+                everyone = false;
+                break;
+            }
+        }
+        return new RequestOptions(options).setAnycasting(!everyone);
+    }
+
+    /**
+     * Gets the protocol stack of the profile chosen by the auction.stack
+     * system property, from the file of profiles.
+     *
+     * @return The protocol stack, or PROTOCOL_STACK if the profile couldn't
+     * be loaded.
+     */
+    public static String protocolStack() {
+        return protocolStack(System.getProperty(STACK_PROPERTY, DEFAULT_PROFILE));
+    }
+
+    /**
+     * Gets the protocol stack of a profile from the profiles.
+     *
+     * @param profile The name of the profile.
+     * @return The protocol stack, or PROTOCOL_STACK if the profile couldn't
+     * be loaded.
+     * @throws IllegalArgumentException If the profile has no UNICAST3, which
+     * calls sent to only some members rely on.
+     */
+    public static String protocolStack(String profile) {
+        Properties profiles = stackProfiles();
+        String stack = profiles.getProperty(profile);
+        if (stack == null) {
+            System.out.println("No protocol stack profile \"" + profile + "\", using the basic stack.");
+            return PROTOCOL_STACK;
+        }
+        if (!stack.contains("UNICAST3")) {
+            throw new IllegalArgumentException("Protocol stack profile \"" + profile + "\" has no UNICAST3.");
+        }
+        return stack.trim();
+    }
+
+    /**
+     * Loads every protocol stack profile, from the file named by the
+     * auction.stack.file system property if set, otherwise from the profiles
+     * on the classpath.
+     *
+     * @return The stack of each profile, by name. Empty if the profiles
+     * couldn't be read.
+     */
+    public static Properties stackProfiles() {
+        Properties profiles = new Properties();
+        String file = System.getProperty(STACK_FILE_PROPERTY);
+        try (InputStream in = file != null ? new FileInputStream(file) : ChannelMember.class.getResourceAsStream(STACK_RESOURCE)) {
+            if (in == null) {
+                throw new IOException("No " + STACK_RESOURCE + " on the classpath.");
+            }
+            profiles.load(in);
+        } catch (IOException ex) {
+            Logger.getLogger(ChannelMember.class.getName()).log(Level.WARNING, "Couldn't read protocol stack profiles from " + (file != null ? file : STACK_RESOURCE), ex);
+        }
+        return profiles;
+    }
+
 }
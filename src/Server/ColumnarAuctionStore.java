@@ -0,0 +1,490 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * An auction store that keeps auctions off the heap, in columns of primitive
+ * values held in direct buffers. Names and emails are stored once each in a
+ * shared string table and referred to by number, and descriptions are packed
+ * into a byte arena. The heap only holds a few arrays per segment no matter how
+ * many auctions there are, so garbage collection stays flat for very large
+ * catalogs. Auction objects are only created when an auction is read.
+ *
+ * Auctions are spread over segments by ID, each with its own columns and its
+ * own read/write lock. Bids take the write lock of their segment rather than
+ * swapping an object.
+ *
+ * @author DominicWild
+ */
+public class ColumnarAuctionStore implements AuctionStore {
+
+    private static final int SEGMENTS = 32;             //Number of independently locked segments. Must be a power of two.
+    private static final int INITIAL_ROWS = 1024;       //Rows each segment has room for before its columns grow.
+    private static final int INITIAL_ARENA = 32 * 1024; //Bytes each segment has for descriptions before its arena grows.
+    private static final int MAX_ARENA = Integer.MAX_VALUE; //Most bytes of descriptions a segment can hold, as arena offsets are ints.
+
+    private final Segment[] segments;                           //The segments auctions are spread over.
+    private final StringTable strings = new StringTable();      //Names and emails of owners and bidders.
+    private final AtomicInteger size = new AtomicInteger();     //The number of auctions across all segments.
+
+    /**
+     * Creates an empty store.
+     */
+    public ColumnarAuctionStore() {
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Finds the segment an auction ID belongs to.
+     *
+     * @param id The auction ID.
+     * @return The segment holding that ID.
+     */
+    private Segment segmentOf(int id) {
+        int h = id * 0x9E3779B9;
+        return this.segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    @Override
+    public Auction get(int id) {
+        Segment s = this.segmentOf(id);
+        s.lock.readLock().lock();
+        try {
+            int row = s.rows.get(id);
+            return row < 0 ? null : s.read(row);
+        } finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(int id) {
+        Segment s = this.segmentOf(id);
+        s.lock.readLock().lock();
+        try {
+            return s.rows.get(id) >= 0;
+        } finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(int id, Auction a) {
+        Segment s = this.segmentOf(id);
+        s.lock.writeLock().lock();
+        try {
+            if (s.rows.get(id) >= 0) {
+                return false;
+            }
+            byte[] description = a.getDescription().getBytes(StandardCharsets.UTF_8);
+            s.reserveArena(description.length); //May fail, so before anything is changed.
+            int row = s.allocateRow();
+            s.rows.put(id, row);
+            s.write(row, a, description);
+            this.size.incrementAndGet();
+            return true;
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(int id, Auction a) {
+        Segment s = this.segmentOf(id);
+        byte[] description = a.getDescription().getBytes(StandardCharsets.UTF_8);
+        s.lock.writeLock().lock();
+        try {
+            s.reserveArena(description.length); //May fail, so before anything is changed.
+            int row = s.rows.get(id);
+            if (row < 0) {
+                row = s.allocateRow();
+                s.rows.put(id, row);
+                this.size.incrementAndGet();
+            } else {
+                s.arenaGarbage += s.descLengths.getInt(row << 2); //The old description is no longer referenced.
+            }
+            s.write(row, a, description);
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Auction remove(int id, String owner) {
+        Segment s = this.segmentOf(id);
+        s.lock.writeLock().lock();
+        try {
+            int row = s.rows.get(id);
+            if (row < 0 || !this.strings.get(s.owners.getInt(row << 2)).equals(owner)) {
+                return null;
+            }
+            Auction a = s.read(row); //A copy; bids racing with the removal take the write lock after us and find no row.
+            s.rows.remove(id);
+            s.releaseRow(row);
+            this.size.decrementAndGet();
+            return a;
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean outbids(int id, long amount) {
+        Segment s = this.segmentOf(id);
+        s.lock.readLock().lock();
+        try {
+            int row = s.rows.get(id);
+            return row >= 0 && s.prices.getLong(row << 3) < amount;
+        } finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Bid placeBid(int id, Bid bid) {
+        Segment s = this.segmentOf(id);
+        s.lock.writeLock().lock();
+        try {
+            int row = s.rows.get(id);
+            if (row < 0 || s.prices.getLong(row << 3) >= bid.getPrice()) {
+                return null;
+            }
+            Bid displaced = s.readBid(row);
+            s.writeBid(row, bid);
+            return displaced;
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.size.get();
+    }
+
+    @Override
+    public void clear() {
+        for (Segment s : this.segments) {
+            s.lock.writeLock().lock();
+            try {
+                this.size.addAndGet(-s.rows.size());
+                s.reset();
+            } finally {
+                s.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Visits every auction in the store. The auctions of each segment are read
+     * out under its read lock and visited after the lock is released.
+     *
+     * @param visitor Called with each auction and its ID.
+     */
+    @Override
+    public void forEach(ObjIntConsumer<Auction> visitor) {
+        for (Segment s : this.segments) {
+            int[] ids;
+            Auction[] auctions;
+            s.lock.readLock().lock();
+            try {
+                ids = new int[s.rows.size()];
+                auctions = new Auction[ids.length];
+                int[] count = {0};
+                s.rows.forEach((id, row) -> {
+                    ids[count[0]] = id;
+                    auctions[count[0]++] = s.read(row);
+                });
+            } finally {
+                s.lock.readLock().unlock();
+            }
+            for (int i = 0; i < ids.length; i++) {
+                visitor.accept(auctions[i], ids[i]);
+            }
+        }
+    }
+
+    /**
+     * Allocates a column in a direct buffer, outside of the heap.
+     *
+     * @param rows The number of rows the column holds.
+     * @param width The number of bytes per row.
+     * @return The new column.
+     */
+    private static ByteBuffer column(int rows, int width) {
+        return ByteBuffer.allocateDirect(rows * width).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Copies a column into a larger one.
+     *
+     * @param old The column to copy.
+     * @param rows The number of rows the new column holds.
+     * @param width The number of bytes per row.
+     * @return The new column holding the contents of the old one.
+     */
+    private static ByteBuffer grow(ByteBuffer old, int rows, int width) {
+        ByteBuffer grown = column(rows, width);
+        ByteBuffer source = old.duplicate();
+        source.clear();
+        grown.put(source);
+        return grown;
+    }
+
+    /**
+     * A share of the auctions held in their own columns. Every method must be
+     * called while holding the segment's lock.
+     */
+    private final class Segment {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); //Guards everything in this segment.
+        private final IntIntMap rows = new IntIntMap();     //Maps auction IDs to the row holding them.
+
+        private int capacity = INITIAL_ROWS;                //Number of rows the columns have room for.
+        private int rowCount = 0;                           //Number of rows ever handed out.
+        private int[] freeRows = new int[16];               //Rows released by removed auctions, ready for reuse.
+        private int freeCount = 0;                          //Number of rows in freeRows.
+
+        private ByteBuffer prices = column(capacity, 8);        //Leading bid of each row, in cents.
+        private ByteBuffer reserves = column(capacity, 8);      //Reserve price of each row, in cents.
+        private ByteBuffer owners = column(capacity, 4);        //String table number of each row's owner.
+        private ByteBuffer bidders = column(capacity, 4);       //String table number of each row's leading bidder.
+        private ByteBuffer emails = column(capacity, 4);        //String table number of each row's leading bidder's email.
+        private ByteBuffer descOffsets = column(capacity, 4);   //Offset of each row's description in the arena.
+        private ByteBuffer descLengths = column(capacity, 4);   //Length in bytes of each row's description.
+
+        private ByteBuffer arena = column(INITIAL_ARENA, 1);    //UTF-8 bytes of every description.
+        private int arenaEnd = 0;                               //Offset of the first unused byte in the arena.
+        private int arenaGarbage = 0;                           //Bytes in the arena no longer referenced by any row.
+
+        /**
+         * Hands out a row for a new auction, growing the columns if needed.
+         *
+         * @return The row to store the auction in.
+         */
+        private int allocateRow() {
+            if (this.freeCount > 0) {
+                return this.freeRows[--this.freeCount];
+            }
+            if (this.rowCount == this.capacity) {
+                int grown = this.capacity << 1;
+                this.prices = grow(this.prices, grown, 8);
+                this.reserves = grow(this.reserves, grown, 8);
+                this.owners = grow(this.owners, grown, 4);
+                this.bidders = grow(this.bidders, grown, 4);
+                this.emails = grow(this.emails, grown, 4);
+                this.descOffsets = grow(this.descOffsets, grown, 4);
+                this.descLengths = grow(this.descLengths, grown, 4);
+                this.capacity = grown;
+            }
+            return this.rowCount++;
+        }
+
+        /**
+         * Gives a row back for reuse once its auction is removed.
+         *
+         * @param row The row to release.
+         */
+        private void releaseRow(int row) {
+            this.arenaGarbage += this.descLengths.getInt(row << 2);
+            if (this.freeCount == this.freeRows.length) {
+                this.freeRows = Arrays.copyOf(this.freeRows, this.freeCount << 1);
+            }
+            this.freeRows[this.freeCount++] = row;
+        }
+
+        /**
+         * Empties the segment, keeping its columns for reuse.
+         */
+        private void reset() {
+            this.rows.clear();
+            this.rowCount = 0;
+            this.freeCount = 0;
+            this.arenaEnd = 0;
+            this.arenaGarbage = 0;
+        }
+
+        /**
+         * Writes every value of an auction into a row. Room for the description
+         * must have been reserved first.
+         *
+         * @param row The row to write to.
+         * @param a The auction to write.
+         * @param description The auction's description in UTF-8.
+         */
+        private void write(int row, Auction a, byte[] description) {
+            this.reserves.putLong(row << 3, a.getReservePrice());
+            this.owners.putInt(row << 2, strings.idOf(a.getOwner()));
+            this.writeBid(row, a.getLeadingBid());
+            this.writeDescription(row, description);
+        }
+
+        /**
+         * Writes a leading bid into a row.
+         *
+         * @param row The row to write to.
+         * @param bid The new leading bid.
+         */
+        private void writeBid(int row, Bid bid) {
+            this.prices.putLong(row << 3, bid.getPrice());
+            this.bidders.putInt(row << 2, strings.idOf(bid.getBidderName()));
+            this.emails.putInt(row << 2, strings.idOf(bid.getBidderEmail()));
+        }
+
+        /**
+         * Makes sure a description of the given length fits at the end of the
+         * arena, compacting the arena first if it doesn't. The arena doubles
+         * in size, up to MAX_ARENA, if it would still be more than half full
+         * afterwards.
+         *
+         * @param needed Bytes that must fit.
+         * @throws IllegalStateException If the descriptions still in use would
+         * not fit in MAX_ARENA bytes. The segment is left unchanged.
+         */
+        private void reserveArena(int needed) {
+            if ((long) this.arenaEnd + needed <= this.arena.capacity()) {
+                return;
+            }
+            long live = (long) this.arenaEnd - this.arenaGarbage + needed;
+            if (live > MAX_ARENA) {
+                throw new IllegalStateException("Descriptions of a segment can't exceed " + MAX_ARENA + " bytes.");
+            }
+            long size = this.arena.capacity();
+            while (live > size / 2 && size < MAX_ARENA) {
+                size = Math.min(size << 1, MAX_ARENA);
+            }
+            this.compactArena((int) size);
+        }
+
+        /**
+         * Appends a description to the end of the arena and points a row at it.
+         *
+         * @param row The row the description belongs to.
+         * @param bytes The description in UTF-8, with room reserved for it.
+         */
+        private void writeDescription(int row, byte[] bytes) {
+            this.arena.position(this.arenaEnd);
+            this.arena.put(bytes);
+            this.descOffsets.putInt(row << 2, this.arenaEnd);
+            this.descLengths.putInt(row << 2, bytes.length);
+            this.arenaEnd += bytes.length;
+        }
+
+        /**
+         * Copies the descriptions still in use into a fresh arena, dropping the
+         * bytes of removed auctions.
+         *
+         * @param size The size of the new arena in bytes.
+         */
+        private void compactArena(int size) {
+            ByteBuffer compacted = column(size, 1);
+            ByteBuffer old = this.arena;
+            this.rows.forEach((id, r) -> {
+                int offset = this.descOffsets.getInt(r << 2);
+                int length = this.descLengths.getInt(r << 2);
+                ByteBuffer source = old.duplicate();
+                source.limit(offset + length).position(offset);
+                this.descOffsets.putInt(r << 2, compacted.position());
+                compacted.put(source);
+            });
+            this.arena = compacted;
+            this.arenaEnd = compacted.position();
+            this.arenaGarbage = 0;
+        }
+
+        /**
+         * Reads a row's description back out of the arena.
+         *
+         * @param row The row to read.
+         * @return The description.
+         */
+        private String readDescription(int row) {
+            byte[] bytes = new byte[this.descLengths.getInt(row << 2)];
+            ByteBuffer source = this.arena.duplicate();
+            source.position(this.descOffsets.getInt(row << 2));
+            source.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads a row's leading bid.
+         *
+         * @param row The row to read.
+         * @return The leading bid.
+         */
+        private Bid readBid(int row) {
+            return new Bid(this.prices.getLong(row << 3), strings.get(this.bidders.getInt(row << 2)), strings.get(this.emails.getInt(row << 2)));
+        }
+
+        /**
+         * Reads a row into a new Auction object.
+         *
+         * @param row The row to read.
+         * @return The auction stored in that row.
+         */
+        private Auction read(int row) {
+            return new Auction(strings.get(this.owners.getInt(row << 2)), this.readDescription(row), this.reserves.getLong(row << 3), this.readBid(row));
+        }
+    }
+
+    /**
+     * Numbers every distinct name and email, so columns can refer to them with
+     * an int. There are only as many entries as there are users, so entries
+     * are never removed.
+     */
+    private static final class StringTable {
+
+        private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();  //The number of each string.
+        private volatile String[] values = new String[64];                                  //The string of each number.
+        private int count = 0;                                                              //Number of strings held.
+
+        /**
+         * Gets the number of a string, adding it to the table if it is new.
+         *
+         * @param value The string, may be null.
+         * @return The number referring to it, -1 for null.
+         */
+        private int idOf(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer id = this.ids.get(value);
+            return id != null ? id : this.add(value);
+        }
+
+        private synchronized int add(String value) {
+            Integer id = this.ids.get(value);
+            if (id != null) { //Added by someone else while we waited.
+                return id;
+            }
+            String[] table = this.values;
+            if (this.count == table.length) {
+                table = Arrays.copyOf(table, this.count << 1);
+            }
+            table[this.count] = value;
+            this.values = table; //Publish the string before its number.
+            this.ids.put(value, this.count);
+            return this.count++;
+        }
+
+        /**
+         * Gets the string a number refers to.
+         *
+         * @param id The number.
+         * @return The string, or null for -1.
+         */
+        private String get(int id) {
+            return id < 0 ? null : this.values[id];
+        }
+    }
+}
@@ -7,5 +7,5 @@ package Server;
  * @author DominicWild
  */
 public enum Command {
-    SYNC;
+    SHARDS;
 }
@@ -0,0 +1,193 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * An auction store that keeps auctions as objects on the heap. Auctions are
+ * spread over a number of stripes, each guarded by its own read/write lock, so
+ * operations on different auctions rarely contend and reads never block each
+ * other. Bids are placed on the auction objects themselves, without taking any
+ * lock.
+ *
+ * @author DominicWild
+ */
+public class HeapAuctionStore implements AuctionStore {
+
+    private static final int STRIPES = 32;                      //Number of independently locked stripes. Must be a power of two.
+
+    private final IntAuctionMap[] stripes;                      //The auctions held by each stripe.
+    private final ReentrantReadWriteLock[] locks;               //The lock guarding each stripe.
+    private final AtomicInteger size = new AtomicInteger();     //The number of auctions across all stripes.
+
+    /**
+     * Creates an empty auction store.
+     */
+    public HeapAuctionStore() {
+        this.stripes = new IntAuctionMap[STRIPES];
+        this.locks = new ReentrantReadWriteLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes[i] = new IntAuctionMap();
+            this.locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Finds the stripe an auction ID belongs to. The ID is mixed first so
+     * sequential IDs are spread evenly over the stripes.
+     *
+     * @param id The auction ID.
+     * @return The index of the stripe holding that ID.
+     */
+    private static int stripeOf(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    @Override
+    public Auction get(int id) {
+        int s = stripeOf(id);
+        this.locks[s].readLock().lock();
+        try {
+            return this.stripes[s].get(id);
+        } finally {
+            this.locks[s].readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(int id) {
+        int s = stripeOf(id);
+        this.locks[s].readLock().lock();
+        try {
+            return this.stripes[s].containsKey(id);
+        } finally {
+            this.locks[s].readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(int id, Auction a) {
+        int s = stripeOf(id);
+        this.locks[s].writeLock().lock();
+        try {
+            if (this.stripes[s].containsKey(id)) {
+                return false;
+            }
+            this.stripes[s].put(id, a);
+            this.size.incrementAndGet();
+            return true;
+        } finally {
+            this.locks[s].writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(int id, Auction a) {
+        int s = stripeOf(id);
+        this.locks[s].writeLock().lock();
+        try {
+            if (this.stripes[s].put(id, a) == null) {
+                this.size.incrementAndGet();
+            }
+        } finally {
+            this.locks[s].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an auction if it is owned by the specified person. The auction
+     * is closed as it is removed, so bids racing with the removal fail.
+     *
+     * @param id The ID of the auction to remove.
+     * @param owner The person attempting the removal.
+     * @return The removed auction, or null if it doesn't exist or isn't owned
+     * by the remover.
+     */
+    @Override
+    public Auction remove(int id, String owner) {
+        int s = stripeOf(id);
+        this.locks[s].writeLock().lock();
+        try {
+            Auction a = this.stripes[s].get(id);
+            if (a == null || !a.getOwner().equals(owner)) {
+                return null;
+            }
+            this.stripes[s].remove(id);
+            this.size.decrementAndGet();
+            a.close();
+            return a;
+        } finally {
+            this.locks[s].writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean outbids(int id, long amount) {
+        Auction a = this.get(id);
+        if (a == null) {
+            return false;
+        }
+        Bid leading = a.getLeadingBid();
+        return !leading.isClosed() && leading.getPrice() < amount;
+    }
+
+    @Override
+    public Bid placeBid(int id, Bid bid) {
+        Auction a = this.get(id);
+        return a == null ? null : a.placeBid(bid); //The auction swaps in the bid itself, so no stripe lock is held.
+    }
+
+    @Override
+    public int size() {
+        return this.size.get();
+    }
+
+    @Override
+    public void clear() {
+        for (int s = 0; s < STRIPES; s++) {
+            this.locks[s].writeLock().lock();
+            try {
+                this.size.addAndGet(-this.stripes[s].size());
+                this.stripes[s].clear();
+            } finally {
+                this.locks[s].writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Visits every auction in the store. Each stripe is copied under its read
+     * lock and visited after the lock is released, so the visitor never blocks
+     * writers.
+     *
+     * @param visitor Called with each auction and its ID.
+     */
+    @Override
+    public void forEach(ObjIntConsumer<Auction> visitor) {
+        int[] ids = new int[0];
+        Auction[] auctions = new Auction[0];
+        for (int s = 0; s < STRIPES; s++) {
+            int count = 0;
+            this.locks[s].readLock().lock();
+            try {
+                IntAuctionMap stripe = this.stripes[s];
+                if (ids.length < stripe.size()) { //Reuse the copy buffers, growing them only when a stripe doesn't fit.
+                    ids = new int[stripe.size()];
+                    auctions = new Auction[stripe.size()];
+                }
+                IntAuctionMap.Cursor c = stripe.cursor();
+                while (c.advance()) {
+                    ids[count] = c.key();
+                    auctions[count++] = c.value();
+                }
+            } finally {
+                this.locks[s].readLock().unlock();
+            }
+            for (int i = 0; i < count; i++) {
+                visitor.accept(auctions[i], ids[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package Server;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive int auction IDs to auctions. Auctions are kept densely
+ * packed in a flat array, with an IntIntMap giving the position of each ID, so
+ * entries need no boxed keys or node objects and a lookup allocates nothing.
+ * Not thread safe; AuctionStore guards each instance with its stripe lock.
+ *
+ * @author DominicWild
+ */
+public class IntAuctionMap {
+
+    private static final int MIN_CAPACITY = 16;     //Smallest number of entries the arrays have room for.
+
+    private final IntIntMap positions = new IntIntMap();    //Position of each auction ID in the arrays.
+    private int[] ids;              //Auction ID at each position.
+    private Auction[] values;       //Auction at each position.
+    private int size;               //Number of positions in use, all at the front of the arrays.
+
+    /**
+     * Creates an empty map.
+     */
+    public IntAuctionMap() {
+        this.ids = new int[MIN_CAPACITY];
+        this.values = new Auction[MIN_CAPACITY];
+    }
+
+    /**
+     * Gets the auction with the specified ID.
+     *
+     * @param key The auction ID.
+     * @return The auction, or null if there isn't one.
+     */
+    public Auction get(int key) {
+        int i = this.positions.get(key);
+        return i < 0 ? null : this.values[i];
+    }
+
+    /**
+     * Checks if an auction is stored under the specified ID.
+     *
+     * @param key The auction ID.
+     * @return True if the ID is in the map.
+     */
+    public boolean containsKey(int key) {
+        return this.positions.get(key) >= 0;
+    }
+
+    /**
+     * Stores an auction under an ID, replacing any auction already there.
+     *
+     * @param key The auction ID.
+     * @param value The auction to store, not null.
+     * @return The auction previously stored under the ID, or null.
+     */
+    public Auction put(int key, Auction value) {
+        int i = this.positions.get(key);
+        if (i >= 0) {
+            Auction old = this.values[i];
+            this.values[i] = value;
+            return old;
+        }
+        if (this.size == this.values.length) {
+            this.ids = Arrays.copyOf(this.ids, this.size << 1);
+            this.values = Arrays.copyOf(this.values, this.size << 1);
+        }
+        this.ids[this.size] = key;
+        this.values[this.size] = value;
+        this.positions.put(key, this.size++);
+        return null;
+    }
+
+    /**
+     * Removes the auction stored under an ID. The last entry is moved into its
+     * position, so the arrays stay densely packed.
+     *
+     * @param key The auction ID.
+     * @return The auction removed, or null if there wasn't one.
+     */
+    public Auction remove(int key) {
+        int i = this.positions.remove(key);
+        if (i < 0) {
+            return null;
+        }
+        Auction old = this.values[i];
+        int last = --this.size;
+        if (i != last) {
+            this.ids[i] = this.ids[last];
+            this.values[i] = this.values[last];
+            this.positions.put(this.ids[i], i);
+        }
+        this.values[last] = null;
+        return old;
+    }
+
+    /**
+     * Gets the number of auctions in the map.
+     *
+     * @return The number of auctions.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Removes every auction from the map, shrinking it back to its minimum
+     * size.
+     */
+    public void clear() {
+        this.positions.clear();
+        if (this.values.length == MIN_CAPACITY) {
+            Arrays.fill(this.values, null);
+        } else {
+            this.ids = new int[MIN_CAPACITY];
+            this.values = new Auction[MIN_CAPACITY];
+        }
+        this.size = 0;
+    }
+
+    /**
+     * Creates a cursor positioned before the first entry of the map.
+     *
+     * @return A new cursor over the map.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Walks the entries of the map in position order without creating an
+     * object per entry. The map must not be modified while a cursor is in use.
+     */
+    public class Cursor {
+
+        private int index = -1;     //The position the cursor is on.
+
+        /**
+         * Moves to the next entry.
+         *
+         * @return True if there was another entry, false at the end of the map.
+         */
+        public boolean advance() {
+            return ++this.index < IntAuctionMap.this.size;
+        }
+
+        /**
+         * Gets the auction ID of the current entry.
+         *
+         * @return The ID of the current entry.
+         */
+        public int key() {
+            return IntAuctionMap.this.ids[this.index];
+        }
+
+        /**
+         * Gets the auction of the current entry.
+         *
+         * @return The auction of the current entry.
+         */
+        public Auction value() {
+            return IntAuctionMap.this.values[this.index];
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package Server;
+
+import java.util.Arrays;
+
+/**
+ * A map from int keys to non-negative int values, such as auction IDs to the
+ * row an auction is stored at. Uses open addressing with linear probing over
+ * two flat arrays, so it holds no objects per entry and a lookup allocates
+ * nothing. IntAuctionMap is built on it too. Not thread safe.
+ *
+ * @author DominicWild
+ */
+public class IntIntMap {
+
+    private static final int MIN_CAPACITY = 16;     //Smallest table size. Must be a power of two.
+    private static final float LOAD_FACTOR = 0.75f; //Fraction of slots that may be filled before the table grows.
+    private static final int FREE = -1;             //Value marking an unused slot.
+
+    private int[] keys;             //Key held in each slot.
+    private int[] values;           //Value held in each slot, FREE if the slot is unused.
+    private int size;               //Number of occupied slots.
+    private int threshold;          //Size at which the table grows.
+    private int shift;              //Shift that turns a hashed key into a slot index.
+
+    /**
+     * Creates an empty map.
+     */
+    public IntIntMap() {
+        this.allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Replaces the table with an empty one of the given capacity.
+     *
+     * @param capacity The new number of slots, a power of two.
+     */
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        Arrays.fill(this.values, FREE);
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+        this.shift = Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    /**
+     * Finds the preferred slot of a key. Uses Fibonacci hashing so sequential
+     * IDs spread over the whole table.
+     *
+     * @param key The key.
+     * @return The slot the key is first probed at.
+     */
+    private int slotOf(int key) {
+        return (key * 0x9E3779B9) >>> this.shift;
+    }
+
+    /**
+     * Finds the slot a key is stored in.
+     *
+     * @param key The key.
+     * @return The slot holding the key, or -1 if it is not in the map.
+     */
+    private int find(int key) {
+        int mask = this.values.length - 1;
+        for (int i = this.slotOf(key); this.values[i] != FREE; i = (i + 1) & mask) {
+            if (this.keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the value of a key.
+     *
+     * @param key The key.
+     * @return The value, or -1 if the key is not in the map.
+     */
+    public int get(int key) {
+        int i = this.find(key);
+        return i < 0 ? -1 : this.values[i];
+    }
+
+    /**
+     * Stores a value under a key, replacing any value already there.
+     *
+     * @param key The key.
+     * @param value The value, not negative.
+     * @return The previous value, or -1 if there wasn't one.
+     */
+    public int put(int key, int value) {
+        int mask = this.values.length - 1;
+        int i = this.slotOf(key);
+        while (this.values[i] != FREE) {
+            if (this.keys[i] == key) {
+                int old = this.values[i];
+                this.values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+        if (++this.size > this.threshold) {
+            this.rehash(this.values.length << 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Removes a key, shifting later entries of its probe chain back into the
+     * gap.
+     *
+     * @param key The key.
+     * @return The value removed, or -1 if the key wasn't in the map.
+     */
+    public int remove(int key) {
+        int gap = this.find(key);
+        if (gap < 0) {
+            return -1;
+        }
+        int old = this.values[gap];
+        int mask = this.values.length - 1;
+        for (int i = (gap + 1) & mask; this.values[i] != FREE; i = (i + 1) & mask) {
+            int home = this.slotOf(this.keys[i]);
+            if (((i - home) & mask) >= ((i - gap) & mask)) { //Entry may legally sit in the gap, so move it there.
+                this.keys[gap] = this.keys[i];
+                this.values[gap] = this.values[i];
+                gap = i;
+            }
+        }
+        this.values[gap] = FREE;
+        this.size--;
+        return old;
+    }
+
+    /**
+     * Moves every entry into a new table of the given capacity.
+     *
+     * @param capacity The new number of slots, a power of two.
+     */
+    private void rehash(int capacity) {
+        int[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        this.allocate(capacity);
+        this.size = 0;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != FREE) {
+                this.put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of entries in the map.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Removes every entry from the map, shrinking it back to its minimum size.
+     */
+    public void clear() {
+        this.allocate(MIN_CAPACITY);
+        this.size = 0;
+    }
+
+    /**
+     * Visits every entry of the map in slot order. The map must not be
+     * modified during the visit.
+     *
+     * @param visitor Called with the key and value of each entry.
+     */
+    public void forEach(IntBiConsumer visitor) {
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != FREE) {
+                visitor.accept(this.keys[i], this.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Receives the key and value of an entry without boxing them.
+     */
+    public interface IntBiConsumer {
+
+        public void accept(int key, int value);
+    }
+}
@@ -0,0 +1,159 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The replication manager's own copy of the live auctions, kept up to date
+ * from the agreed outcome of every add, remove and bid it coordinates, so
+ * listings and single auctions can be read without asking the AuctionServers.
+ *
+ * Every change folded in bumps a version counter. When the outcome of a write
+ * is lost, such as a call that timed out, the view can no longer tell whether
+ * it missed a change, so the version it was lost at is recorded. The view is
+ * current only while it was last loaded after the last lost write; until then
+ * reads go to the AuctionServers and the view is reloaded from them. Changes
+ * made while a load is in progress are kept and applied again on top of what
+ * was loaded. Every change can safely be applied twice.
+ *
+ * @author DominicWild
+ */
+public class ListingView {
+
+    private volatile ConcurrentSkipListMap<Integer, Auction> auctions = new ConcurrentSkipListMap<>(); //Live auctions by ID.
+    private long version = 0;                                           //Changes folded in so far.
+    private long lostAt = 0;                                            //Version at which a write's outcome was last lost.
+    private volatile boolean current = false;                           //Whether the view has every agreed change.
+    private ArrayList<Consumer<Map<Integer, Auction>>> replay;          //Changes made during a load, or null if not loading.
+
+    /**
+     * Records an auction that was added.
+     *
+     * @param id The ID of the auction.
+     * @param a The auction.
+     */
+    public void added(int id, Auction a) {
+        this.change(m -> m.put(id, a));
+    }
+
+    /**
+     * Records an auction that was removed.
+     *
+     * @param id The ID of the auction.
+     */
+    public void removed(int id) {
+        this.change(m -> m.remove(id));
+    }
+
+    /**
+     * Records a bid that succeeded.
+     *
+     * @param id The ID of the auction bid on.
+     * @param amount The amount bid, in cents.
+     * @param name The name of the bidder.
+     * @param email The email of the bidder.
+     */
+    public void bid(int id, long amount, String name, String email) {
+        Bid bid = new Bid(amount, name, email);
+        this.change(m -> {
+            Auction a = m.get(id);
+            if (a != null) {
+                a.placeBid(bid); //Only ever raises the price, so applying it again is harmless.
+            }
+        });
+    }
+
+    /**
+     * Records that the outcome of a write is unknown, making the view stale
+     * until it is next loaded.
+     */
+    public synchronized void lost() {
+        this.lostAt = ++this.version;
+        this.current = false;
+    }
+
+    /**
+     * Checks if the view has every agreed change, and so can be read.
+     *
+     * @return True if the view is current.
+     */
+    public boolean isCurrent() {
+        return this.current;
+    }
+
+    /**
+     * Gets an auction from the view.
+     *
+     * @param id The ID of the auction.
+     * @return The auction, or null if there is no such auction.
+     */
+    public Auction get(int id) {
+        return this.auctions.get(id);
+    }
+
+    /**
+     * Gets a listing of every auction in the view.
+     *
+     * @return The listing, in the same form the AuctionServers give it.
+     */
+    public String listings() {
+        StringBuilder rows = new StringBuilder();
+        for (Map.Entry<Integer, Auction> e : this.auctions.entrySet()) {
+            rows.append(Listings.row(e.getKey(), e.getValue()));
+        }
+        return Listings.frame(rows.toString());
+    }
+
+    /**
+     * Replaces the view with auctions loaded from the AuctionServers. Only one
+     * load runs at a time; if one is already running this returns at once.
+     *
+     * @param loader Loads every live auction, or returns null if it couldn't.
+     * @return True if the view is current after the load.
+     */
+    public boolean load(Supplier<Map<Integer, Auction>> loader) {
+        long start;
+        synchronized (this) {
+            if (this.replay != null) { //Someone else is loading.
+                return this.current;
+            }
+            this.replay = new ArrayList<>();
+            start = ++this.version;
+        }
+        Map<Integer, Auction> loaded = null;
+        try {
+            loaded = loader.get();
+        } finally {
+            synchronized (this) {
+                if (loaded != null) {
+                    ConcurrentSkipListMap<Integer, Auction> fresh = new ConcurrentSkipListMap<>(loaded);
+                    for (Consumer<Map<Integer, Auction>> change : this.replay) {
+                        change.accept(fresh);
+                    }
+                    this.auctions = fresh;
+                    this.current = this.lostAt < start; //Nothing was lost since the load began.
+                    this.version++;
+                }
+                this.replay = null;
+            }
+        }
+        return this.current;
+    }
+
+    /**
+     * Folds a change into the view, keeping it to replay if a load is in
+     * progress.
+     *
+     * @param change The change.
+     */
+    private synchronized void change(Consumer<Map<Integer, Auction>> change) {
+        change.accept(this.auctions);
+        if (this.replay != null) {
+            this.replay.add(change);
+        }
+        this.version++;
+    }
+}
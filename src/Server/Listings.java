@@ -0,0 +1,73 @@
+package Server;
+
+import ServiceInterfaces.Money;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Formats the listing of current auctions shown to bidders. Listings are
+ * built from rows, one per auction in ID order, so the rows of several shards
+ * can be merged into one listing.
+ *
+ * @author DominicWild
+ */
+final class Listings {
+
+    private static final String SEPARATOR = "------------------------------------------------------------------------------";
+    private static final String EMPTY = "There are no listings.";        //Shown when no auctions are running.
+
+    private Listings() {
+    }
+
+    /**
+     * Formats the row of one auction.
+     *
+     * @param id The ID of the auction.
+     * @param a The auction.
+     * @return The row, ending in a new line.
+     */
+    static String row(int id, Auction a) {
+        return String.format("|%-10d|%-11s|%-12s|%-40s|", id, Money.format(a.getCurrentPrice()), a.getBidderName(), a.getDescription()) + "\n";
+    }
+
+    /**
+     * Wraps rows in the listing table.
+     *
+     * @param rows The rows of every auction, in ID order.
+     * @return The listing.
+     */
+    static String frame(String rows) {
+        if (rows.isEmpty()) { //Check if there are bids
+            return EMPTY;
+        }
+        StringBuilder table = new StringBuilder(SEPARATOR).append("\n");
+        table.append(String.format("|%-10s|%-11s|%-12s|%-40s|", "Auction ID", "Highest Bid", "Name", "Description")).append("\n");
+        table.append(SEPARATOR).append("\n");
+        table.append(rows);
+        table.append(SEPARATOR).append("\n");
+        return table.toString();
+    }
+
+    /**
+     * Merges the rows of several shards into one listing, in ID order.
+     *
+     * @param parts The rows of each shard.
+     * @return The listing of every shard's auctions.
+     */
+    static String merge(List<String> parts) {
+        TreeMap<Integer, String> rows = new TreeMap<>();
+        for (String part : parts) {
+            for (String row : part.split("\n")) {
+                if (!row.isEmpty()) {
+                    rows.put(Integer.parseInt(row.substring(1, row.indexOf('|', 1)).trim()), row); //The ID is the first column.
+                }
+            }
+        }
+        StringBuilder merged = new StringBuilder();
+        for (Map.Entry<Integer, String> e : rows.entrySet()) {
+            merged.append(e.getValue()).append("\n");
+        }
+        return frame(merged.toString());
+    }
+}
@@ -12,6 +12,8 @@ import java.rmi.server.UnicastRemoteObject;
  */
 public abstract class NamedObject extends UnicastRemoteObject implements IdleWatcherInterface {
 
+    private static final long serialVersionUID = 1L;
+
     protected String owner;                   //The person authorized to use this object.
     protected long lastAction;                //The last noted time which the object was used.
 
@@ -0,0 +1,114 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.ResponseMode;
+import org.jgroups.blocks.RpcDispatcher;
+
+/**
+ * Measures how much returning at a quorum cuts the tail latency of replicated
+ * calls. For each cluster size a manager and that many servers are started in
+ * this process over an in-memory transport. Every server answers most calls
+ * at once but, like a replica pausing for garbage collection or a busy disk,
+ * is sometimes slow: 95% of calls take 1ms, 4% take 20ms and 1% take 300ms.
+ * The manager makes a run of calls with each quorum and reports the latency
+ * percentiles.
+ *
+ * Usage: java Server.QuorumBenchmark [quorum...], benchmarking "all" and
+ * "majority" if no quorums are named. The cluster sizes and calls per quorum
+ * are set with the system properties bench.servers, a comma separated list,
+ * and bench.calls.
+ *
+ * @author DominicWild
+ */
+public class QuorumBenchmark {
+
+    private static final String STACK = "SHARED_LOOPBACK:SHARED_LOOPBACK_PING:pbcast.NAKACK2:UNICAST3:pbcast.GMS"; //In-memory stack, so only the servers' delays count.
+    private static final String SERVERS = System.getProperty("bench.servers", "3,5,7");    //Cluster sizes benchmarked.
+    private static final int CALLS = Integer.getInteger("bench.calls", 1000);               //Calls made per quorum.
+    private static final long TIMEOUT = 5000;                                               //Milliseconds a call may take.
+
+    public static void main(String[] args) throws Exception {
+        Logger.getLogger("").setLevel(Level.OFF);
+        List<String> quorums = args.length > 0 ? Arrays.asList(args) : Arrays.asList("all", "majority");
+        ArrayList<String> results = new ArrayList<>();
+        for (String servers : SERVERS.split(",")) {
+            results.addAll(benchmark(Integer.parseInt(servers.trim()), quorums));
+        }
+        System.out.println();
+        System.out.println(String.format("%-8s|%-10s|%10s|%10s|%10s", "Servers", "Quorum", "p50", "p95", "p99"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Benchmarks every quorum on one cluster size.
+     *
+     * @param servers The number of servers.
+     * @param quorums The quorums to benchmark.
+     * @return A row of the results table for each quorum.
+     * @throws Exception If the cluster couldn't be started.
+     */
+    private static List<String> benchmark(int servers, List<String> quorums) throws Exception {
+        ArrayList<JChannel> channels = new ArrayList<>();
+        ArrayList<String> rows = new ArrayList<>();
+        try {
+            JChannel manager = new JChannel(STACK);
+            RpcDispatcher dispatcher = new RpcDispatcher(manager, null, null, null);
+            manager.connect("QuorumBenchmark-" + servers);
+            channels.add(manager);
+            for (int i = 0; i < servers; i++) {
+                JChannel channel = new JChannel(STACK);
+                new RpcDispatcher(channel, null, null, new SlowServer());
+                channel.connect("QuorumBenchmark-" + servers);
+                channels.add(channel);
+            }
+            while (manager.getView().size() < servers + 1) {
+                Thread.sleep(100);
+            }
+
+            MethodCall call = new MethodCall("call", new Object[0], new Class<?>[0]);
+            for (String quorum : quorums) {
+                long[] latencies = new long[CALLS];
+                for (int i = 0; i < CALLS; i++) {
+                    RequestOptions options = new RequestOptions(ResponseMode.GET_ALL, TIMEOUT)
+                            .setRspFilter(new QuorumFilter(QuorumFilter.required(quorum, servers)));
+                    long t = System.nanoTime();
+                    dispatcher.callRemoteMethods(null, call, options);
+                    latencies[i] = System.nanoTime() - t;
+                }
+                Arrays.sort(latencies);
+                rows.add(String.format("%-8d|%-10s|%8.1fms|%8.1fms|%8.1fms", servers, quorum, latencies[CALLS / 2] / 1e6,
+                        latencies[CALLS * 95 / 100] / 1e6, latencies[CALLS * 99 / 100] / 1e6));
+            }
+        } finally {
+            for (int i = channels.size() - 1; i >= 0; i--) {
+                channels.get(i).close();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * The server object answering the benchmark's calls, now and then slowly.
+     */
+    public static class SlowServer {
+
+        private final Random random = new Random();     //Picks how long each call takes.
+
+        public Reply call() throws InterruptedException {
+            double draw = this.random.nextDouble();
+            Thread.sleep(draw < 0.95 ? 1 : draw < 0.99 ? 20 : 300);
+            return new Reply(1, 42L);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package Server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import org.jgroups.Address;
+import org.jgroups.blocks.RspFilter;
+
+/**
+ * Lets a replicated call return as soon as enough AuctionServers have given
+ * the same answer, instead of waiting for every server, so one slow server
+ * doesn't hold up every client. Servers that answer late still apply the call,
+ * and any that end up differing are repaired by anti-entropy. Answers from
+ * servers part way through a sync are not counted.
+ *
+ * How many matching answers are enough is set per operation with the system
+ * property auction.quorum.[method], falling back to auction.quorum, as one of
+ * "all", "majority" or a number of servers. The default is a majority.
+ *
+ * @author DominicWild
+ */
+public class QuorumFilter implements RspFilter {
+
+    public static final String QUORUM_PROPERTY = "auction.quorum";     //System property prefix setting quorums.
+
+    private static final String DEFAULT_QUORUM = "majority";            //Quorum of operations not configured.
+
+    private final int required;                                         //Matching answers needed to return.
+    private final Set<Address> ignored;                                 //Servers whose answers don't count.
+    private final HashMap<Object, Integer> tally = new HashMap<>();     //Servers giving each answer so far.
+    private boolean reached = false;                                    //Whether any answer has reached the quorum.
+
+    /**
+     * Creates a filter waiting for a number of matching answers.
+     *
+     * @param required The number of matching answers needed.
+     */
+    public QuorumFilter(int required) {
+        this(required, Collections.emptySet());
+    }
+
+    /**
+     * Creates a filter waiting for a number of matching answers, not counting
+     * those of some servers.
+     *
+     * @param required The number of matching answers needed.
+     * @param ignored Servers whose answers don't count.
+     */
+    public QuorumFilter(int required, Set<Address> ignored) {
+        this.required = Math.max(1, required);
+        this.ignored = ignored;
+    }
+
+    /**
+     * Creates a filter for a replicated call, using the quorum configured for
+     * its method.
+     *
+     * @param method The name of the method called.
+     * @param servers The number of AuctionServers whose answers count.
+     * @param ignored Servers whose answers don't count.
+     * @return A filter for the call.
+     */
+    public static QuorumFilter forOperation(String method, int servers, Set<Address> ignored) {
+        return forOperation(method, servers, ignored, DEFAULT_QUORUM);
+    }
+
+    /**
+     * Creates a filter for a replicated call, using the quorum configured for
+     * its method or a given quorum if none is.
+     *
+     * @param method The name of the method called.
+     * @param servers The number of AuctionServers whose answers count.
+     * @param ignored Servers whose answers don't count.
+     * @param fallback The quorum to use if none is configured.
+     * @return A filter for the call.
+     */
+    public static QuorumFilter forOperation(String method, int servers, Set<Address> ignored, String fallback) {
+        String spec = System.getProperty(QUORUM_PROPERTY + "." + method, System.getProperty(QUORUM_PROPERTY, fallback));
+        return new QuorumFilter(required(spec, servers), ignored);
+    }
+
+    /**
+     * Works out how many matching answers a quorum needs.
+     *
+     * @param spec "all", "majority" or a number of servers.
+     * @param servers The number of servers answering.
+     * @return The number of matching answers needed.
+     */
+    static int required(String spec, int servers) {
+        switch (spec.trim().toLowerCase()) {
+            case "all":
+                return servers;
+            case "majority":
+                return servers / 2 + 1;
+            default:
+                try {
+                    return Math.min(Integer.parseInt(spec.trim()), servers);
+                } catch (NumberFormatException e) {
+                    System.out.println("Unknown quorum \"" + spec + "\", using a majority.");
+                    return servers / 2 + 1;
+                }
+        }
+    }
+
+    /**
+     * Counts an answer towards the quorum. Every answer is kept, so the vote
+     * on the result sees them all. Null answers, from servers that skipped a
+     * sequenced call, are not counted.
+     */
+    @Override
+    public synchronized boolean isAcceptable(Object response, Address sender) {
+        if (response != null && !(response instanceof Throwable) && !this.ignored.contains(sender)) {
+            int count = this.tally.merge(response, 1, Integer::sum);
+            if (count >= this.required) {
+                this.reached = true;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean needMoreResponses() {
+        return !this.reached;
+    }
+
+    @Override
+    public String toString() {
+        return "QuorumFilter(" + this.required + ")";
+    }
+
+}
@@ -0,0 +1,151 @@
+package Server;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.jgroups.Address;
+
+/**
+ * Keeps a read leader for each shard: one in-sync AuctionServer that answers
+ * the manager's reads of the shard while its lease lasts, so a read costs one
+ * replica rather than all of them. Leaders are nominated from the servers
+ * whose state digests agree with most of their shard. When a lease runs out
+ * the next agreeing server after the old leader takes over, spreading reads
+ * over every replica in turn.
+ *
+ * A leader that leaves the view, starts syncing or fails a read loses its
+ * lease at once, and the next read nominates another. Nominating asks the
+ * shard for its digests, so it is done outside of any lock: reads of the same
+ * shard arriving meanwhile wait for that one nomination, and reads of other
+ * shards are not held up at all.
+ *
+ * Reads are only as fresh as the leader. Writes return once a quorum of the
+ * shard agrees, by default a majority, and the leader need not be in it, so a
+ * read may miss a write that has already returned until the leader applies
+ * it. Where reads must see every write that has returned, set the write
+ * quorum to all (auction.quorum=all), which puts the leader in every quorum.
+ *
+ * @author DominicWild
+ */
+public class ReadLeases {
+
+    public static final String LEASE_PROPERTY = "auction.read.lease";  //System property setting how long a read lease lasts, in milliseconds.
+    private static final long DEFAULT_LEASE = 2000;                     //Milliseconds a read lease lasts if not set.
+
+    private final long leaseTime = Long.getLong(LEASE_PROPERTY, DEFAULT_LEASE); //Milliseconds a read lease lasts.
+    private final Function<String, List<Address>> inSync;               //Finds the servers of a shard agreeing with most of it, in view order.
+    private final Predicate<Address> usable;                            //Whether a server is still in the view and not syncing.
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>(); //The latest lease of each shard.
+    private final ConcurrentHashMap<String, CompletableFuture<Address>> nominations = new ConcurrentHashMap<>(); //The nomination under way in each shard.
+
+    /**
+     * Creates the read leases.
+     *
+     * @param inSync Finds the servers of a shard whose state digests agree with
+     * most of the shard, in view order.
+     * @param usable Checks if a server is still in the view and not syncing.
+     */
+    public ReadLeases(Function<String, List<Address>> inSync, Predicate<Address> usable) {
+        this.inSync = inSync;
+        this.usable = usable;
+    }
+
+    /**
+     * Gets the read leader of a shard, nominating a new one if the lease has
+     * run out or its leader can no longer serve reads.
+     *
+     * @param shard The shard.
+     * @return The address of the leader, or null if no server of the shard
+     * could be nominated.
+     */
+    public Address leader(String shard) {
+        Lease lease = this.leases.get(shard);
+        if (this.holds(lease)) {
+            return lease.leader;
+        }
+        CompletableFuture<Address> nomination = new CompletableFuture<>();
+        CompletableFuture<Address> running = this.nominations.putIfAbsent(shard, nomination);
+        if (running != null) { //Someone is already nominating for this shard, use theirs.
+            try {
+                return running.join();
+            } catch (CompletionException | CancellationException e) {
+                return null;
+            }
+        }
+        try {
+            Address leader = this.nominate(shard);
+            nomination.complete(leader);
+            return leader;
+        } catch (RuntimeException e) {
+            nomination.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.nominations.remove(shard, nomination);
+        }
+    }
+
+    /**
+     * Nominates a new leader for a shard, unless a lease was granted while
+     * we waited to. Only one nomination per shard runs at a time.
+     *
+     * @param shard The shard.
+     * @return The address of the leader, or null if no server of the shard
+     * could be nominated.
+     */
+    private Address nominate(String shard) {
+        Lease lease = this.leases.get(shard);
+        if (this.holds(lease)) {
+            return lease.leader;
+        }
+        List<Address> candidates = this.inSync.apply(shard);
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        Address previous = lease == null ? null : lease.leader;
+        Address leader = candidates.get((candidates.indexOf(previous) + 1) % candidates.size()); //The one after the last leader, or the oldest.
+        this.leases.put(shard, new Lease(leader, System.currentTimeMillis() + this.leaseTime));
+        if (!leader.equals(previous)) {
+            System.out.println("Read leader of shard " + shard + " is now " + leader);
+        }
+        return leader;
+    }
+
+    /**
+     * Ends the lease of a leader that failed a read, so the next read
+     * nominates another.
+     *
+     * @param shard The shard.
+     * @param leader The leader that failed.
+     */
+    public void revoke(String shard, Address leader) {
+        this.leases.computeIfPresent(shard, (s, lease) -> lease.leader.equals(leader) ? new Lease(leader, 0) : lease);
+    }
+
+    /**
+     * Checks if a lease is still running and its leader can serve reads.
+     *
+     * @param lease The lease, or null.
+     * @return True if the lease holds.
+     */
+    private boolean holds(Lease lease) {
+        return lease != null && System.currentTimeMillis() < lease.expires && this.usable.test(lease.leader);
+    }
+
+    /**
+     * A server's lease on the reads of a shard.
+     */
+    private static class Lease {
+
+        private final Address leader;                                   //The server holding the lease.
+        private final long expires;                                     //When the lease runs out.
+
+        Lease(Address leader, long expires) {
+            this.leader = leader;
+            this.expires = expires;
+        }
+    }
+}
@@ -7,8 +7,24 @@ import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Objects;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jgroups.Address;
@@ -17,6 +33,7 @@ import org.jgroups.View;
 import org.jgroups.blocks.MethodCall;
 import org.jgroups.blocks.RequestOptions;
 import org.jgroups.blocks.ResponseMode;
+import org.jgroups.util.Rsp;
 import org.jgroups.util.RspList;
 
 /**
@@ -29,9 +46,43 @@ import org.jgroups.util.RspList;
 public class ReplicationManager extends ChannelMember {
 
     private RequestOptions options;                      //The options for RPC requests.
-    private HashMap<Address, Address> rpcMappings;       //Used to map RPC channel addresses to AuctionChannel addresses for message sending.
     private HashMap<String,Remote> sessions;            //The current sessions in progress of connected users.
     private final int RMI_PORT = 1099;
+    private static final int ID_LEASE_SIZE = 1000;      //Number of auction IDs leased from the AuctionServers at a time.
+    private static final long CALL_TIMEOUT = 5000;      //Milliseconds to wait for AuctionServers to answer a call.
+    private static final int COMPLETION_THREADS = 4;    //Threads voting on replies, however many calls are in flight.
+    private static final String SEQUENCED_QUORUM = "1"; //Quorum of sequenced calls not configured, as every replica gives the same reply.
+    private static final long MIN_LOAD_BACKOFF = 500;   //Milliseconds before retrying a failed load of the listing view.
+    private static final long MAX_LOAD_BACKOFF = 30000; //Longest wait before retrying a failed load of the listing view.
+
+    private final Object idLock = new Object();         //Guards the currently leased range of auction IDs.
+    private int nextID = 0;                             //The next auction ID to hand out from the current lease.
+    private int leaseEnd = 0;                           //The first ID past the end of the current lease.
+    private SyncCoordinator syncs;                      //Starts syncs, at most one per server at a time.
+    private ReadLeases readLeases;                      //Picks the one server of each shard to answer reads.
+    private AntiEntropy antiEntropy;                    //Finds and repairs drifted AuctionServers in the background.
+    private BidBatcher bidBatcher;                      //Gathers bids placed together into one replicated call.
+    private final boolean sequenced = Boolean.getBoolean(Sequencer.SEQUENCED_PROPERTY); //Whether replicated calls are numbered and run in order, see Sequencer.
+    private final long epoch = System.currentTimeMillis(); //Epoch of our sequence numbers, newer than any earlier manager's.
+    private final ConcurrentHashMap<String, AtomicLong> sequences = new ConcurrentHashMap<>(); //The last sequence number given to a replicated call, per shard.
+    private final ShardRing ring = ShardRing.fromProperties(); //Places auctions onto shards.
+    private final ListingView view = new ListingView();  //Our own copy of the live auctions, for reads.
+    private final AtomicBoolean viewLoading = new AtomicBoolean(); //Whether a load of the listing view is under way.
+    private volatile long nextViewLoad = 0;             //When the listing view may next be loaded.
+    private long viewBackoff = MIN_LOAD_BACKOFF;        //Wait after the next failed load, only touched by the loading thread.
+    private final ExecutorService viewLoader = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "listing-view-loader");
+                t.setDaemon(true);
+                return t;
+            });                                         //Reloads the listing view off the threads answering clients.
+    private final ConcurrentHashMap<Address, String> shardOf = new ConcurrentHashMap<>(); //The shard each AuctionServer serves, by address.
+    private RequestOptions sequencedOptions;            //The options for sequenced RPC requests.
+    private final ThreadPoolExecutor completions = new ThreadPoolExecutor(COMPLETION_THREADS, COMPLETION_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1024), r -> {
+                Thread t = new Thread(r, "replication-completion");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy()); //Votes on replies as calls complete. If swamped the call fails, never running the vote on the JGroups thread completing it.
 
     public static void main(String[] args) {
         ReplicationManager repServer = new ReplicationManager();
@@ -56,11 +107,19 @@ public class ReplicationManager extends ChannelMember {
      */
     public void init() {
         this.joinGroupChannel();
-        this.rpc.start();
-        this.rpcMappings = new HashMap<>();
         this.sessions = new HashMap<>();
-        this.options = new RequestOptions(ResponseMode.GET_ALL, 5000);
+        this.options = new RequestOptions(ResponseMode.GET_ALL, CALL_TIMEOUT);
+        this.sequencedOptions = new RequestOptions(ResponseMode.GET_ALL, CALL_TIMEOUT, false, null, Message.Flag.OOB); //Servers order these themselves, so they needn't queue behind each other.
+        this.syncs = new SyncCoordinator(this.rpc);
+        this.readLeases = new ReadLeases(this::inSyncServers, server -> this.shardOf.containsKey(server) && !this.syncs.isSyncing(server));
+        this.antiEntropy = new AntiEntropy(this.rpc, this.syncs, this.shardOf::get);
+        this.antiEntropy.start();
+        this.bidBatcher = new BidBatcher(this::placeBids, 2 * CALL_TIMEOUT); //As long as await would wait on the batch's call.
         bindRMIObjects();
+        if (this.sequenced) {
+            System.out.println("Sequenced replication, epoch " + this.epoch);
+        }
+        System.out.println("Auctions placed on shards " + this.ring.shards());
     }
 
     /**
@@ -101,11 +160,43 @@ public class ReplicationManager extends ChannelMember {
      * @return The ID of the auction added.
      */
     int addAuction(Auction a) {
-        this.checkSumVerification();
-        MethodCall method = new MethodCall("addAuction", new Object[]{a}, new Class[]{Auction.class});
-        RspList<Integer> responses = this.getResponses(method);
+        int id = this.allocateID();
+        if (id < 0) {
+            return -1;
+        }
+        MethodCall method = new MethodCall("addAuction", new Object[]{a, id}, new Class<?>[]{Auction.class, int.class});
+        Reply added = (Reply) this.await(this.voted(this.ring.shardFor(id), method));
+        if (added == null) { //It may still have been added.
+            this.view.lost();
+            return -1;
+        }
+        if (!(added.getResult() instanceof Integer) || (int) added.getResult() < 0) {
+            return -1;
+        }
+        this.view.added(id, a);
+        return id;
+    }
 
-        return (int) this.consistencyCheck(responses);
+    /**
+     * Hands out the next auction ID from the current lease, leasing a new
+     * range from the AuctionServers when the current one runs out. IDs are
+     * decided here once, so replicas never have to agree on them by probing.
+     *
+     * @return A new, unused auction ID, or -1 if no range could be leased.
+     */
+    private int allocateID() {
+        synchronized (this.idLock) {
+            if (this.nextID == this.leaseEnd) { //Used up our lease, get a new one.
+                MethodCall method = new MethodCall("leaseIDRange", new Object[]{ID_LEASE_SIZE}, new Class<?>[]{int.class});
+                Object start = this.await(this.agreed(this.ring.homeShard(), method));
+                if (!(start instanceof Integer)) {
+                    return -1;
+                }
+                this.nextID = (int) start;
+                this.leaseEnd = this.nextID + ID_LEASE_SIZE;
+            }
+            return this.nextID++;
+        }
     }
 
     /**
@@ -118,46 +209,321 @@ public class ReplicationManager extends ChannelMember {
      * @return The Auction object removed.
      */
     Auction removeAuction(String owner, int auctionID) {
-        this.checkSumVerification();
-        MethodCall method = new MethodCall("removeAuction", new Object[]{owner, auctionID}, new Class[]{String.class, int.class});
-        RspList<Integer> responses = this.getResponses(method);
-
-        return (Auction) this.consistencyCheck(responses);
+        MethodCall method = new MethodCall("removeAuction", new Object[]{owner, auctionID}, new Class<?>[]{String.class, int.class});
+        Reply removed = (Reply) this.await(this.voted(this.ring.shardFor(auctionID), method));
+        if (removed == null) { //It may still have been removed.
+            this.view.lost();
+            return null;
+        }
+        if (removed.getResult() != null) {
+            this.view.removed(auctionID);
+        }
+        return (Auction) removed.getResult();
     }
 
-    boolean placeBid(int auctionID, double amount, String name, String email) {
-        this.checkSumVerification();
-        MethodCall method = new MethodCall("placeBid", new Object[]{auctionID, amount, name, email}, new Class[]{int.class, double.class, String.class, String.class});
-        RspList<Integer> responses = this.getResponses(method);
+    /**
+     * Places a bid on all replication servers, batched with other bids placed
+     * at the same time. Bids the listing view shows would lose, as they are
+     * too low or on no live auction, fail without being sent: the view is
+     * never ahead of the servers, so they would lose there too.
+     *
+     * @param auctionID The id of the auction to bid on.
+     * @param amount The amount to bid, in cents.
+     * @param name The name of the bidder.
+     * @param email The email of the bidder.
+     * @return The outcome of the bid.
+     */
+    BidOutcome placeBid(int auctionID, long amount, String name, String email) {
+        if (this.view.isCurrent()) {
+            Auction a = this.view.get(auctionID);
+            if (a == null) {
+                return BidOutcome.NO_AUCTION;
+            } else if (!new Bid(amount, name, email).beats(a.getLeadingBid())) {
+                return BidOutcome.OUTBID;
+            }
+        }
+        return this.bidBatcher.placeBid(auctionID, amount, name, email);
+    }
 
-        return (boolean) this.consistencyCheck(responses);
+    /**
+     * Places a batch of bids on the replication servers, which apply them in
+     * order. The batch is split by shard, and each shard is sent its bids at
+     * the same time. Returns at once, so further batches can be sent while
+     * this one is voted on.
+     *
+     * @return The outcome of each bid. Bids on shards whose servers couldn't
+     * agree are FAILED.
+     */
+    private CompletableFuture<BidOutcome[]> placeBids(int[] auctionIDs, long[] amounts, String[] names, String[] emails) {
+        HashMap<String, ArrayList<Integer>> byShard = new HashMap<>(); //Where in the batch each shard's bids are.
+        for (int i = 0; i < auctionIDs.length; i++) {
+            byShard.computeIfAbsent(this.ring.shardFor(auctionIDs[i]), k -> new ArrayList<>()).add(i);
+        }
+        BidOutcome[] outcomes = new BidOutcome[auctionIDs.length];
+        Arrays.fill(outcomes, BidOutcome.FAILED);
+        ArrayList<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (Map.Entry<String, ArrayList<Integer>> e : byShard.entrySet()) {
+            ArrayList<Integer> slots = e.getValue();
+            int n = slots.size();
+            int[] shardIDs = new int[n];
+            long[] shardAmounts = new long[n];
+            String[] shardNames = new String[n];
+            String[] shardEmails = new String[n];
+            for (int j = 0; j < n; j++) {
+                int slot = slots.get(j);
+                shardIDs[j] = auctionIDs[slot];
+                shardAmounts[j] = amounts[slot];
+                shardNames[j] = names[slot];
+                shardEmails[j] = emails[slot];
+            }
+            MethodCall method = new MethodCall("placeBids", new Object[]{shardIDs, shardAmounts, shardNames, shardEmails}, new Class<?>[]{int[].class, long[].class, String[].class, String[].class});
+            parts.add(this.agreed(e.getKey(), method).handle((result, ex) -> {
+                if (ex != null) {
+                    Logger.getLogger(ReplicationManager.class.getName()).log(Level.SEVERE, "Bids on shard " + e.getKey() + " failed.", ex);
+                }
+                if (!(result instanceof BidOutcome[])) { //Some of the bids may still have been placed.
+                    this.view.lost();
+                    return null;
+                }
+                BidOutcome[] part = (BidOutcome[]) result;
+                for (int j = 0; j < n && j < part.length; j++) {
+                    outcomes[slots.get(j)] = part[j];
+                    if (part[j] == BidOutcome.PLACED) {
+                        this.view.bid(shardIDs[j], shardAmounts[j], shardNames[j], shardEmails[j]);
+                    }
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> outcomes);
     }
 
     String emailFromFile(String name) {
-        this.checkSumVerification();
-        MethodCall method = new MethodCall("emailFromFile", new Object[]{name}, new Class[]{String.class});
-        RspList<Integer> responses = this.getResponses(method);
+        MethodCall method = new MethodCall("emailFromFile", new Object[]{name}, new Class<?>[]{String.class});
 
-        return (String) this.consistencyCheck(responses);
+        return (String) this.await(this.agreed(this.ring.homeShard(), method));
     }
 
+    /**
+     * Gets the listings of all auctions, from the listing view if it is
+     * current. Otherwise they are fetched from the read leader of each shard
+     * while the view is reloaded in the background. With several shards, the
+     * rows of every shard are fetched at the same time and merged.
+     *
+     * @return The listings, or null if any shard couldn't be read.
+     */
     String getListings() {
-        this.checkSumVerification();
-        MethodCall method = new MethodCall("getListings", new Object[]{}, new Class[]{});
-        RspList<Integer> responses = this.getResponses(method);
+        if (this.view.isCurrent()) {
+            return this.view.listings();
+        }
+        this.reloadView();
+        List<String> shards = this.ring.shards();
+        if (shards.size() == 1) {
+            return (String) this.await(this.readPayload(shards.get(0), "getListings"));
+        }
+        ArrayList<CompletableFuture<Object>> parts = new ArrayList<>();
+        for (String shard : shards) {
+            parts.add(this.readPayload(shard, "getListingRows"));
+        }
+        CompletableFuture<String> merged = CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            ArrayList<String> rows = new ArrayList<>();
+            for (CompletableFuture<Object> part : parts) {
+                Object shardRows = part.join();
+                if (!(shardRows instanceof String)) {
+                    return null;
+                }
+                rows.add((String) shardRows);
+            }
+            return Listings.merge(rows);
+        });
+
+        return (String) this.await(merged);
+    }
 
-        return (String) this.consistencyCheck(responses);
+    /**
+     * Starts reloading the listing view in the background, unless a load is
+     * already under way or the last one failed too recently. Failed loads are
+     * retried after a backoff doubling each time, so a shard that can't be
+     * read doesn't turn every read into a copy of the whole catalogue.
+     */
+    private void reloadView() {
+        if (System.currentTimeMillis() < this.nextViewLoad || !this.viewLoading.compareAndSet(false, true)) {
+            return;
+        }
+        this.viewLoader.execute(() -> {
+            try {
+                if (this.view.load(this::loadAuctions)) {
+                    this.viewBackoff = MIN_LOAD_BACKOFF;
+                } else {
+                    this.nextViewLoad = System.currentTimeMillis() + this.viewBackoff;
+                    this.viewBackoff = Math.min(this.viewBackoff * 2, MAX_LOAD_BACKOFF);
+                }
+            } finally {
+                this.viewLoading.set(false);
+            }
+        });
+    }
+
+    /**
+     * Loads every live auction from the AuctionServers, for the listing view.
+     * Each shard's auctions are copied from its read leader a page at a time,
+     * see AuctionServer.getAuctionPage. Should the leader fail, its lease is
+     * revoked and the load fails, to be retried later.
+     *
+     * @return The auctions by ID, or null if a shard couldn't be loaded.
+     */
+    private Map<Integer, Auction> loadAuctions() {
+        int[] buckets = new int[StateDigest.BUCKETS];
+        for (int b = 0; b < buckets.length; b++) {
+            buckets[b] = b;
+        }
+        HashMap<Integer, Auction> auctions = new HashMap<>();
+        for (String shard : this.ring.shards()) {
+            Address leader = this.readLeases.leader(shard);
+            if (leader == null) {
+                return null;
+            }
+            try { //One leader for the whole shard, so the pages match the IDs listed.
+                MethodCall list = new MethodCall("getBucketIDs", new Object[]{buckets}, new Class<?>[]{int[].class});
+                int[] ids = this.rpc.callRemoteMethod(leader, list, this.options);
+                for (int from = 0; from < ids.length; from += AuctionServer.PAGE_SIZE) {
+                    int[] page = Arrays.copyOfRange(ids, from, Math.min(ids.length, from + AuctionServer.PAGE_SIZE));
+                    MethodCall fetch = new MethodCall("getAuctionPage", new Object[]{page}, new Class<?>[]{int[].class});
+                    AuctionServer.readAuctionPage(this.rpc.<byte[]>callRemoteMethod(leader, fetch, this.options), auctions);
+                }
+            } catch (Exception ex) {
+                Logger.getLogger(ReplicationManager.class.getName()).log(Level.WARNING, "Error loading shard " + shard + " from " + leader + " for the listing view.", ex);
+                this.readLeases.revoke(shard, leader);
+                return null;
+            }
+        }
+        System.out.println("Listing view loaded with " + auctions.size() + " auctions.");
+        return auctions;
+    }
+
+    /**
+     * Finds the servers of a shard whose state digests agree with most of the
+     * others, leaving out those syncing. Read leaders are nominated from these.
+     *
+     * @param shard The shard.
+     * @return The addresses of the servers in view order, empty if none
+     * answered.
+     */
+    private List<Address> inSyncServers(String shard) {
+        List<Address> servers = this.members(shard);
+        servers.removeAll(this.syncs.syncing());
+        if (servers.isEmpty()) {
+            return servers;
+        }
+        try {
+            MethodCall method = new MethodCall("getStateDigest", new Object[]{}, new Class<?>[]{});
+            RspList<Long> digests = this.rpc.callRemoteMethods(servers, method, this.toTargets(this.options, servers));
+            HashMap<Long, ArrayList<Address>> tally = new HashMap<>();
+            ArrayList<Address> majority = new ArrayList<>();
+            for (Address server : servers) {
+                Rsp<Long> rsp = digests.get(server);
+                if (rsp != null && rsp.wasReceived() && rsp.getValue() != null) {
+                    ArrayList<Address> agreeing = tally.computeIfAbsent(rsp.getValue(), d -> new ArrayList<>());
+                    agreeing.add(server);
+                    if (agreeing.size() > majority.size()) {
+                        majority = agreeing;
+                    }
+                }
+            }
+            return majority;
+        } catch (Exception ex) {
+            Logger.getLogger(ReplicationManager.class.getName()).log(Level.WARNING, "Error asking shard " + shard + " for state digests.", ex);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Fetches a large result from the read leader of a shard. The leader is
+     * named as the server to send the result, so it sends the result itself
+     * rather than its hash.
+     *
+     * @param shard The shard to read.
+     * @param name The name of the method to call, taking the address of the
+     * server to send the result.
+     * @return A future completed with the result, or null if the shard
+     * couldn't be read.
+     */
+    private CompletableFuture<Object> readPayload(String shard, String name) {
+        return this.leaderRead(shard, leader -> new MethodCall(name, new Object[]{leader}, new Class<?>[]{Address.class}), true)
+                .thenApply(reply -> reply instanceof Reply ? ((Reply) reply).getResult() : null);
+    }
+
+    /**
+     * Executes a read on the read leader of a shard alone. If the leader
+     * fails to answer, its lease is revoked and the read may be retried once
+     * on the leader nominated in its place. The call may depend on which
+     * server is the leader.
+     *
+     * @param shard The shard to read.
+     * @param read Makes the read to invoke on a leader.
+     * @param retry Whether to retry on a new leader if this one fails.
+     * @return A future completed with the leader's response, or null if no
+     * leader answered.
+     */
+    private CompletableFuture<Object> leaderRead(String shard, Function<Address, MethodCall> read, boolean retry) {
+        Address leader = this.readLeases.leader(shard);
+        if (leader == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return this.unicast(leader, read.apply(leader)).handleAsync((result, ex) -> {
+            if (ex == null) {
+                return CompletableFuture.completedFuture(result);
+            }
+            System.out.println("Read leader " + leader + " of shard " + shard + " failed a read, failing over.");
+            this.readLeases.revoke(shard, leader);
+            return retry ? this.leaderRead(shard, read, false) : CompletableFuture.<Object>completedFuture(null);
+        }, this.completions).thenCompose(done -> done);
     }
 
     /**
-     * Checks for consistency within replication server responses. It then
-     * returns, based on the balance of probabilities, the most likely correct
-     * responseOfNode. Among handling any inconsistent servers by synching them.
+     * Gets the AuctionServers serving a shard.
      *
-     * @param responses The list of responses from a Rpc.
-     * @return The most likely correct responseOfNode.
+     * @param shard The name of the shard.
+     * @return The addresses of its servers, oldest first.
      */
-    private Object consistencyCheck(RspList responses) {
+    private List<Address> members(String shard) {
+        ArrayList<Address> servers = new ArrayList<>();
+        for (Address server : this.channel.getView().getMembers()) {
+            if (shard.equals(this.shardOf.get(server))) {
+                servers.add(server);
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Checks for consistency within replication server responses. Servers
+     * agree if their results match; it then returns, based on the balance of
+     * probabilities, the most likely correct result. Servers that disagreed
+     * are reported to the anti-entropy service, which repairs them in the
+     * background rather than before the client gets its answer. The state
+     * digests the agreeing servers sent with their replies are passed on to
+     * anti-entropy too, as they may differ for a while without anything being
+     * wrong.
+     *
+     * @param responses The list of Reply responses from a Rpc.
+     * @return The most likely correct result.
+     */
+    private Object consistencyCheck(RspList<?> responses) {
+        Reply agreed = this.vote(responses);
+        return agreed == null ? null : agreed.getResult();
+    }
+
+    /**
+     * Votes on the replies of a replicated call, as in consistencyCheck.
+     * Replies are compared by hash, so this is linear in the number of
+     * servers whatever the size of the results.
+     *
+     * @param responses The list of Reply responses from a Rpc.
+     * @return A reply given by the majority, carrying its result if any of the
+     * majority sent it. Or null if no server replied.
+     */
+    private Reply vote(RspList<?> responses) {
         HashMap<Object, ArrayList<Address>> freqTable = this.freqHashMap(responses);
 
         logSeparator();
@@ -171,9 +537,28 @@ public class ReplicationManager extends ChannelMember {
             }
         }
 
-        this.syncReplicas(freqTable, keyLargest);
+        for (Object key : freqTable.keySet()) {
+            if (key != keyLargest) {
+                for (Address dissenter : freqTable.get(key)) {
+                    this.antiEntropy.suspect(dissenter);
+                }
+            }
+        }
 
-        return keyLargest;
+        if (!(keyLargest instanceof Reply)) {
+            return null;
+        }
+        HashMap<Address, Long> digests = new HashMap<>();
+        Reply carrying = null;
+        for (Address agreeing : freqTable.get(keyLargest)) {
+            Reply reply = (Reply) responses.get(agreeing).getValue();
+            digests.put(agreeing, reply.getDigest());
+            if (carrying == null && reply.hasResult()) { //Prefer a reply that carries the result itself.
+                carrying = reply;
+            }
+        }
+        this.antiEntropy.compare(digests);
+        return carrying != null ? carrying : (Reply) keyLargest;
     }
 
     /**
@@ -182,52 +567,23 @@ public class ReplicationManager extends ChannelMember {
      *
      * @param responses A Response List to make a frequency table out of.
      */
-    private HashMap<Object, ArrayList<Address>> freqHashMap(RspList responses) {
+    private HashMap<Object, ArrayList<Address>> freqHashMap(RspList<?> responses) {
         HashMap<Object, ArrayList<Address>> table = new HashMap<>();
-        boolean added = false;  //Determines if we've added a particular responseOfNode to the HashMap yet
         for (Object o : responses.keySet()) { //Iterate over all responses to make a frequency table
             Address respondentAddress = (Address) o;
-            Object responseOfNode = responses.get(respondentAddress).getValue();
-            logResponse(respondentAddress, responseOfNode);
-            for (Object tallyKey : table.keySet()) { //tallyKey is a responseOfNode
-                if (Objects.equals(tallyKey, responseOfNode)) { //If response of node matches a response in our frequency table, add the address to its ArrayList.
-                    table.get(tallyKey).add(respondentAddress);
-                    added = true;
-                }
+            if (!responses.get(respondentAddress).wasReceived() || this.syncs.isSyncing(respondentAddress)) { //Left behind by a quorum, or mid-sync.
+                continue;
             }
-            if (!added) { //If we didn't add the responseOfNode add, no entry for it in the table
-                table.put(responseOfNode, new ArrayList<>()); //So we add an entry
-                table.get(responseOfNode).add(respondentAddress);
+            Object responseOfNode = responses.get(respondentAddress).getValue();
+            if (responseOfNode == null) { //Skipped a sequenced call or failed it, such as on a write-ahead log error, so it has no answer to give.
+                continue;
             }
-            added = false;
+            logResponse(respondentAddress, responseOfNode);
+            table.computeIfAbsent(responseOfNode, k -> new ArrayList<>()).add(respondentAddress); //Replies hash by content, so one lookup finds any match.
         }
         return table;
     }
 
-    /**
-     * Synchronises all the nodes who did not give the correct response.
-     *
-     * @param table The frequency table of all responses given.
-     * @param correctKey The accepted correct response.
-     */
-    private void syncReplicas(HashMap<Object, ArrayList<Address>> table, Object correctKey) {
-        Address syncNode = table.get(correctKey).get(0);
-        //Get address of auction channel from rpc mapping.
-        MethodCall syncMethod = new MethodCall("sync", new Object[]{this.rpcMappings.get(syncNode)}, new Class[]{Address.class});
-        System.out.println("Nodes will sync with: " + syncNode.toString());
-        for (Object key : table.keySet()) {
-            if (key != correctKey) { //If the response isn't the expected response
-                for (Address toSync : table.get(key)) { //Go through addresses of all nodes with incorrect response
-                    try {
-                        this.rpc.callRemoteMethod(toSync, syncMethod, options); //Then send them a message telling them to synchronise with someone who has the correct response.
-                    } catch (Exception ex) {
-                        Logger.getLogger(ReplicationManager.class.getName()).log(Level.SEVERE, "Error in sending synchronisation message.", ex);
-                    }
-                }
-            }
-        }
-    }
-
     private void logResponse(Address respondee, Object value) {
         System.out.printf("[%s]: Gives value = %s\n", respondee.toString(), value);
     }
@@ -237,68 +593,194 @@ public class ReplicationManager extends ChannelMember {
     }
 
     /**
-     * Receives mappings from rpc channel addresses to auction channel addresses
-     * and adds them to the map.
+     * Receives the shard an AuctionServer announces it serves, and tells
+     * every server of the change.
      *
-     * @param msg The message containing the mappings.
+     * @param msg The message naming the server and its shard.
      */
     @Override
     public void receive(Message msg) {
         Object[] args = (Object[]) msg.getObject();
-        if (args[0] instanceof Address && args[1] instanceof Address) {
-            System.out.println("Added: " + (Address) args[0] + " -> " + (Address) args[1]);
-            this.rpcMappings.put((Address) args[0], (Address) args[1]);
+        if (args[0] instanceof Address && args[1] instanceof String) {
+            String shard = (String) args[1];
+            System.out.println("Added: " + (Address) args[0] + " serving shard " + shard);
+            if (!this.ring.contains(shard)) {
+                System.out.println("Shard " + shard + " isn't in " + ShardRing.SHARDS_PROPERTY + ", it won't be sent any auctions.");
+            }
+            this.shardOf.put((Address) args[0], shard);
+            this.publishShards();
+        }
+    }
+
+    /**
+     * Sends every AuctionServer the shard each server serves, so joining
+     * servers copy state from a server of their own shard.
+     */
+    private void publishShards() {
+        if (this.shardOf.isEmpty()) { //No servers to tell.
+            return;
+        }
+        Message msg = new Message(null, new Object[]{Command.SHARDS, new HashMap<>(this.shardOf)});
+        try {
+            this.channel.send(msg);
+        } catch (Exception ex) {
+            Logger.getLogger(ReplicationManager.class.getName()).log(Level.SEVERE, "Error sending the shard directory.", ex);
         }
     }
 
     /**
-     * Adjusts mappings in relation to change in view. Removing any mappings
-     * which are now invalid.
+     * Forgets the shards of servers that have left, and tells the remaining
+     * servers.
      */
     @Override
     public void viewAccepted(View view) {
         this.logSeparator();
-        View rpcView = this.rpcChannel.getView();
-        HashMap<Address, Address> updatedMappings = new HashMap<>();
-        for (Address a : rpcView.getMembers()) { //Update the mappings for all current members
-            if (!a.equals(this.rpcChannel.getAddress())) { //If the address is not our own address
-                System.out.println("Updated: " + (Address) a + " -> " + (Address) this.rpcMappings.get(a));
-                updatedMappings.put(a, this.rpcMappings.get(a)); //Add it to a new mapping
-            }
-        } //Results in mapping with only members in our view (up-to-date).
-        this.rpcMappings = updatedMappings;
+        System.out.println("View: " + view);
+        this.shardOf.keySet().retainAll(view.getMembers());
         this.logSeparator();
+        this.publishShards();
     }
 
     /**
-     * Executes a passed MethodCall on all AuctionServers and then collects the
-     * responses and returns them.
+     * Executes a passed MethodCall on all AuctionServers of a shard without
+     * waiting for their responses. The future completes once the quorum
+     * configured for the method have given the same response, see
+     * QuorumFilter.
+     *
+     * In sequenced mode the call is numbered and every server runs it in
+     * that order, see Sequencer. As the servers then all give the same reply,
+     * the first is enough unless a quorum is configured, and calls are sent
+     * out of band so they don't wait on each other on the way.
      *
+     * @param shard The shard whose servers are called.
      * @param method The method to invoke on the AuctionServers.
-     * @return The RspList of the responses each AuctionServer gave.
+     * @return A future completed with the responses each AuctionServer gave.
      */
-    private RspList getResponses(MethodCall method) {
-        RspList<Integer> responses = null;
-
+    private <T> CompletableFuture<RspList<T>> replicate(String shard, MethodCall method) {
+        CompletableFuture<RspList<T>> responses = new CompletableFuture<>();
         try {
-            responses = this.rpc.callRemoteMethods(null, method, options);
+            List<Address> targets = this.members(shard);
+            if (targets.isEmpty()) {
+                throw new IllegalStateException("No AuctionServers running in shard " + shard);
+            }
+            int servers = targets.size();
+            for (Address server : targets) { //Everyone in the shard but those syncing.
+                if (this.syncs.isSyncing(server)) {
+                    servers--;
+                }
+            }
+            servers = Math.max(1, servers);
+            RequestOptions quorum;
+            MethodCall call;
+            if (this.sequenced) {
+                quorum = new RequestOptions(this.sequencedOptions).setRspFilter(QuorumFilter.forOperation(method.getName(), servers, this.syncs.syncing(), SEQUENCED_QUORUM));
+                long seq = this.sequences.computeIfAbsent(shard, k -> new AtomicLong()).incrementAndGet(); //Each shard is its own sequence.
+                call = new MethodCall("sequenced", new Object[]{this.epoch, seq, method.getName(), method.getArgs()},
+                        new Class<?>[]{long.class, long.class, String.class, Object[].class});
+            } else {
+                quorum = new RequestOptions(this.options).setRspFilter(QuorumFilter.forOperation(method.getName(), servers, this.syncs.syncing()));
+                call = method;
+            }
+            this.rpc.<T>callRemoteMethodsWithFuture(targets, call, this.toTargets(quorum, targets), future -> complete(responses, future));
         } catch (Exception ex) {
             Logger.getLogger(ReplicationManager.class.getName()).log(Level.SEVERE, "Error when sending remote call to servers.", ex);
+            responses.completeExceptionally(ex);
         }
         return responses;
     }
 
     /**
-     * Performs a check on the checksums of all AuctionServers and synchronises
-     * if needed.
+     * Executes a passed MethodCall on one AuctionServer, without waiting for
+     * its response.
+     *
+     * @param server The address of the server.
+     * @param method The method to invoke on it.
+     * @return A future completed with the server's response.
      */
-    private void checkSumVerification() {
-        MethodCall method = new MethodCall("getCheckSum", new Object[]{}, new Class[]{});
-        RspList<Integer> responses = this.getResponses(method);
+    private <T> CompletableFuture<T> unicast(Address server, MethodCall method) {
+        CompletableFuture<T> response = new CompletableFuture<>();
+        try {
+            this.rpc.<T>callRemoteMethodWithFuture(server, method, this.options, future -> complete(response, future));
+        } catch (Exception ex) {
+            Logger.getLogger(ReplicationManager.class.getName()).log(Level.SEVERE, "Error when sending remote call to " + server, ex);
+            response.completeExceptionally(ex);
+        }
+        return response;
+    }
 
-        this.consistencyCheck(responses);
+    /**
+     * Passes the outcome of a finished JGroups future on to a
+     * CompletableFuture.
+     *
+     * @param target The future to complete.
+     * @param done The finished JGroups future.
+     */
+    private static <T> void complete(CompletableFuture<T> target, Future<T> done) {
+        try {
+            target.complete(done.get());
+        } catch (ExecutionException e) {
+            target.completeExceptionally(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            target.completeExceptionally(e);
+        } catch (CancellationException e) {
+            target.completeExceptionally(e);
+        }
     }
-    
+
+    /**
+     * Executes a passed MethodCall on all AuctionServers of a shard and votes
+     * on their replies once enough have arrived. The vote runs on the bounded
+     * completion pool, never on the calling thread or a JGroups thread; if the
+     * pool's queue is full the future fails with a
+     * RejectedExecutionException rather than hold up the thread delivering
+     * replies.
+     *
+     * @param shard The shard whose servers are called.
+     * @param method The method to invoke on the AuctionServers.
+     * @return A future completed with the result agreed on, as
+     * consistencyCheck.
+     */
+    private CompletableFuture<Object> agreed(String shard, MethodCall method) {
+        return this.replicate(shard, method).thenApplyAsync(this::consistencyCheck, this.completions);
+    }
+
+    /**
+     * Executes a passed MethodCall on all AuctionServers of a shard and votes
+     * on their replies, as agreed, but gives the winning reply itself. This
+     * tells a call whose result is null apart from one with no result.
+     *
+     * @param shard The shard whose servers are called.
+     * @param method The method to invoke on the AuctionServers.
+     * @return A future completed with the reply agreed on, or null if no
+     * server replied.
+     */
+    private CompletableFuture<Reply> voted(String shard, MethodCall method) {
+        return this.replicate(shard, method).thenApplyAsync(this::vote, this.completions);
+    }
+
+    /**
+     * Waits for the result of a replicated call, for callers such as RMI
+     * threads that must answer synchronously. The waiting thread is held for
+     * as long as the call takes, up to twice the call timeout, so this saves
+     * no threads for RMI clients; it only keeps threads on the cluster side
+     * of the call free.
+     *
+     * @param result The future result.
+     * @return The result, or null if the call failed or timed out.
+     */
+    private Object await(CompletableFuture<?> result) {
+        try {
+            return result.get(2 * CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            Logger.getLogger(ReplicationManager.class.getName()).log(Level.SEVERE, "Replicated call failed.", e);
+        }
+        return null;
+    }
+
+
     /**
      * Adds a new object to the list of current sessions on the server.
      * @param url The URL on the RMI server to the object.
@@ -0,0 +1,151 @@
+package Server;
+
+import java.io.Serializable;
+
+/**
+ * The answer of an AuctionServer to a replicated call. It carries the result
+ * of the call together with the root of the server's state digest just after
+ * the call, so the replication manager can check both the answer and the
+ * consistency of every replica from a single round of responses.
+ *
+ * Replies are compared by a hash of their result alone, never by their
+ * digest: replicas may apply concurrent calls in different orders, so healthy
+ * replicas can briefly give the same result from different states. Digests
+ * are handed to anti-entropy instead, which compares them over time.
+ *
+ * Results are compared by hash rather than by the result itself, so voting costs the same however large results are. That also lets
+ * servers answer with just the hash of a large result, leaving one server to
+ * send the result itself.
+ *
+ * @author DominicWild
+ */
+public final class Reply implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Object result;            //What the call returned, or null if only its hash is sent.
+    private final boolean hasResult;        //Whether the result itself is sent.
+    private final long resultHash;          //Hash of what the call returned.
+    private final long digest;              //Root of the server's state digest after the call.
+
+    /**
+     * Creates a reply carrying its result.
+     *
+     * @param result What the call returned, may be null.
+     * @param digest Root of the server's state digest after the call.
+     */
+    public Reply(Object result, long digest) {
+        this(result, true, hashOf(result), digest);
+    }
+
+    private Reply(Object result, boolean hasResult, long resultHash, long digest) {
+        this.result = result;
+        this.hasResult = hasResult;
+        this.resultHash = resultHash;
+        this.digest = digest;
+    }
+
+    /**
+     * Creates a reply carrying only the hash of its result.
+     *
+     * @param result What the call returned, may be null.
+     * @param digest Root of the server's state digest after the call.
+     * @return The reply.
+     */
+    public static Reply hashOnly(Object result, long digest) {
+        return new Reply(null, false, hashOf(result), digest);
+    }
+
+    /**
+     * Hashes the result of a call the same way on every server, over its full
+     * content with 64 bits: strings with FNV-1a, and auctions, numbers and
+     * bid outcomes by mixing their fields with SplitMix64, as in StateDigest.
+     * Bid outcomes are hashed by ordinal, as an enum's own hash code differs
+     * from one server to the next.
+     *
+     * @param result The result to hash, may be null.
+     * @return The hash of the result.
+     * @throws IllegalArgumentException If results of its type can't be hashed.
+     */
+    private static long hashOf(Object result) {
+        if (result == null) {
+            return 0;
+        } else if (result instanceof String) {
+            return StateDigest.hash((String) result);
+        } else if (result instanceof Boolean) {
+            return StateDigest.mix((Boolean) result ? 1 : 2);
+        } else if (result instanceof Integer || result instanceof Long) {
+            return StateDigest.mix(((Number) result).longValue());
+        } else if (result instanceof BidOutcome) {
+            return StateDigest.mix(((BidOutcome) result).ordinal() + 1);
+        } else if (result instanceof BidOutcome[]) { //Outcomes of a batch of bids.
+            BidOutcome[] outcomes = (BidOutcome[]) result;
+            long h = StateDigest.mix(outcomes.length);
+            for (BidOutcome outcome : outcomes) {
+                h = StateDigest.mix(h ^ (outcome.ordinal() + 1));
+            }
+            return h;
+        } else if (result instanceof Auction) {
+            Auction a = (Auction) result;
+            Bid bid = a.getLeadingBid();
+            long h = StateDigest.mix(StateDigest.hash(a.getOwner()));
+            h = StateDigest.mix(h ^ StateDigest.hash(a.getDescription()));
+            h = StateDigest.mix(h ^ a.getReservePrice());
+            h = StateDigest.mix(h ^ bid.getPrice());
+            h = StateDigest.mix(h ^ StateDigest.hash(bid.getBidderName()));
+            return StateDigest.mix(h ^ StateDigest.hash(bid.getBidderEmail()));
+        }
+        throw new IllegalArgumentException("Can't hash a result of type " + result.getClass().getName() + ".");
+    }
+
+    /**
+     * Gets what the call returned.
+     *
+     * @return The result of the call, or null if only its hash was sent.
+     */
+    public Object getResult() {
+        return result;
+    }
+
+    /**
+     * Checks if this reply carries its result, rather than just its hash.
+     *
+     * @return True if the result was sent.
+     */
+    public boolean hasResult() {
+        return hasResult;
+    }
+
+    /**
+     * Gets the state digest of the server after the call.
+     *
+     * @return The root of its state digest.
+     */
+    public long getDigest() {
+        return digest;
+    }
+
+    /**
+     * Two replies are equal if they give the same result, whatever the states
+     * of their servers. Only hashes are compared, whether or not the results
+     * were sent.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Reply)) {
+            return false;
+        }
+        return this.resultHash == ((Reply) o).resultHash;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.resultHash);
+    }
+
+    @Override
+    public String toString() {
+        String shown = this.hasResult ? String.valueOf(this.result) : "result " + Long.toHexString(this.resultHash);
+        return shown + " (digest " + Long.toHexString(this.digest) + ")";
+    }
+}
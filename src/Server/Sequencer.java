@@ -0,0 +1,154 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies sequenced calls on an AuctionServer strictly in the order of their
+ * sequence numbers, whatever order they arrive in. The replication manager
+ * numbers every call it replicates in sequenced mode, so every replica runs
+ * the same calls in the same order, one at a time, and ends up in the same
+ * state. Calls arriving ahead of their turn are queued, without holding the
+ * thread that delivered them, and run by whichever thread delivers the call
+ * that closes the gap before them.
+ *
+ * Sequence numbers belong to an epoch, set by the manager when it starts, so
+ * a restarted manager numbering from 1 again is followed rather than ignored.
+ * Should a call in the sequence never arrive, the calls after it are held back
+ * no longer than the gap timeout; they then run without it and anti-entropy
+ * repairs whatever the missing call would have changed.
+ *
+ * @author DominicWild
+ */
+public class Sequencer {
+
+    public static final String SEQUENCED_PROPERTY = "auction.sequenced"; //System property turning on sequenced replication in the manager.
+
+    private static final long GAP_TIMEOUT = 5000;                       //Milliseconds a call is held back waiting for one before it.
+
+    private final TreeMap<Long, Held> held = new TreeMap<>();           //Calls held back, by sequence number.
+    private long epoch = -1;                                            //Epoch of the sequence being followed.
+    private long next = -1;                                             //Sequence number of the next call to run, or -1 to follow the first seen.
+    private final ScheduledExecutorService gapTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sequencer-gap-timer");
+        t.setDaemon(true);
+        return t;
+    });                                                                 //Gives up on gaps that don't close in time.
+    private ScheduledFuture<?> gapCheck;                                //The pending check for a gap, or null if none is armed.
+
+    /**
+     * Runs a call once every call numbered before it in its epoch has run,
+     * returning at once. Calls from an older epoch, or whose turn was
+     * skipped, are not run and are answered with null.
+     *
+     * @param epoch The epoch of the manager that numbered the call.
+     * @param seq The call's sequence number.
+     * @param call Runs the call.
+     * @param done Given the reply of the call, or null if it wasn't run.
+     */
+    public void submit(long epoch, long seq, Supplier<Reply> call, Consumer<Reply> done) {
+        ArrayList<Runnable> answers = new ArrayList<>();
+        synchronized (this) {
+            if (epoch < this.epoch) { //From a manager since replaced.
+                answers.add(() -> done.accept(null));
+            } else {
+                if (epoch > this.epoch || this.next < 0) { //A new manager, or our first call: start following from here.
+                    for (Held overtaken : this.held.values()) {
+                        answers.add(() -> overtaken.done.accept(null));
+                    }
+                    this.held.clear();
+                    this.epoch = epoch;
+                    this.next = seq;
+                }
+                if (seq < this.next) { //Its turn was skipped.
+                    answers.add(() -> done.accept(null));
+                } else {
+                    this.held.put(seq, new Held(call, done, System.currentTimeMillis() + GAP_TIMEOUT));
+                    this.runReady(answers);
+                    if (!this.held.isEmpty() && this.gapCheck == null) { //One check per gap, however many calls wait behind it.
+                        this.gapCheck = this.gapTimer.schedule(this::checkGap, GAP_TIMEOUT, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }
+        answers.forEach(Runnable::run); //Reply outside the lock, so sending doesn't hold up the sequence.
+    }
+
+    /**
+     * Runs the calls held back whose turn has come, in order.
+     *
+     * @param answers Collects the replies to send once the lock is released.
+     */
+    private void runReady(ArrayList<Runnable> answers) {
+        while (!this.held.isEmpty() && this.held.firstKey() == this.next) {
+            Held ready = this.held.pollFirstEntry().getValue();
+            Reply reply = null;
+            try {
+                reply = ready.call.get();
+            } catch (RuntimeException ex) { //Answer it as not run, rather than stall the calls after it.
+                Logger.getLogger(Sequencer.class.getName()).log(Level.SEVERE, "Sequenced call " + this.next + " failed.", ex);
+            }
+            this.next++;
+            Reply answer = reply;
+            answers.add(() -> ready.done.accept(answer));
+        }
+    }
+
+    /**
+     * Skips over a gap in the sequence once any call held back behind it has
+     * waited the gap timeout, then re-arms itself for the earliest deadline
+     * of the calls still held back, if any.
+     */
+    private void checkGap() {
+        ArrayList<Runnable> answers = new ArrayList<>();
+        synchronized (this) {
+            this.gapCheck = null;
+            if (this.held.isEmpty()) { //The gap closed in time.
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long earliest = Long.MAX_VALUE;
+            for (Held waiting : this.held.values()) {
+                earliest = Math.min(earliest, waiting.deadline);
+            }
+            if (earliest <= now) {
+                long resume = this.held.firstKey();
+                System.out.println("Gave up waiting for calls " + this.next + " to " + (resume - 1) + ", resuming at " + resume);
+                this.next = resume;
+                this.runReady(answers);
+                earliest = Long.MAX_VALUE; //Calls still held are behind another gap, each waiting out its own deadline.
+                for (Held waiting : this.held.values()) {
+                    earliest = Math.min(earliest, waiting.deadline);
+                }
+            }
+            if (!this.held.isEmpty()) {
+                this.gapCheck = this.gapTimer.schedule(this::checkGap, Math.max(1, earliest - now), TimeUnit.MILLISECONDS);
+            }
+        }
+        answers.forEach(Runnable::run);
+    }
+
+    /**
+     * A call held back until its turn.
+     */
+    private static class Held {
+
+        private final Supplier<Reply> call;                             //Runs the call.
+        private final Consumer<Reply> done;                             //Given the reply of the call.
+        private final long deadline;                                    //When to stop waiting for the calls before it.
+
+        Held(Supplier<Reply> call, Consumer<Reply> done, long deadline) {
+            this.call = call;
+            this.done = done;
+            this.deadline = deadline;
+        }
+    }
+}
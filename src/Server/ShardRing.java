@@ -0,0 +1,115 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Places auction IDs onto shards with consistent hashing. Each shard owns many
+ * points on a ring of hashes, and an auction belongs to the shard owning the
+ * first point at or after the hash of its ID. Every shard is its own group of
+ * AuctionServers, holding only its own auctions.
+ *
+ * The shards are set with the system property auction.shards as a comma
+ * separated list of names, "0" if not set. Every manager must be given the
+ * same list, and it must not change while auctions are live, as auctions are
+ * not moved between shards. Each AuctionServer names the shard it serves with
+ * auction.shard, also "0" if not set.
+ *
+ * @author DominicWild
+ */
+public class ShardRing {
+
+    public static final String SHARDS_PROPERTY = "auction.shards";     //System property listing the shards.
+    public static final String SHARD_PROPERTY = "auction.shard";       //System property naming the shard an AuctionServer serves.
+    public static final String DEFAULT_SHARD = "0";                     //Shard of a server, and the only shard, if not set.
+
+    private static final int POINTS_PER_SHARD = 128;                    //Points each shard owns on the ring, to even out their share.
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();        //The owner of each point on the ring.
+    private final List<String> shards;                                  //Every shard, in the order listed.
+
+    /**
+     * Creates a ring of the given shards.
+     *
+     * @param shards The names of the shards.
+     */
+    public ShardRing(List<String> shards) {
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        for (String shard : this.shards) {
+            for (int i = 0; i < POINTS_PER_SHARD; i++) {
+                this.ring.put(StateDigest.mix(StateDigest.hash(shard + "#" + i)), shard);
+            }
+        }
+    }
+
+    /**
+     * Creates the ring of shards listed by the auction.shards system property.
+     *
+     * @return The configured ring.
+     */
+    public static ShardRing fromProperties() {
+        ArrayList<String> shards = new ArrayList<>();
+        for (String shard : System.getProperty(SHARDS_PROPERTY, DEFAULT_SHARD).split(",")) {
+            if (!shard.trim().isEmpty() && !shards.contains(shard.trim())) {
+                shards.add(shard.trim());
+            }
+        }
+        if (shards.isEmpty()) {
+            shards.add(DEFAULT_SHARD);
+        }
+        return new ShardRing(shards);
+    }
+
+    /**
+     * Gets the shard an AuctionServer serves, from the auction.shard system
+     * property.
+     *
+     * @return The name of the shard.
+     */
+    public static String localShard() {
+        return System.getProperty(SHARD_PROPERTY, DEFAULT_SHARD).trim();
+    }
+
+    /**
+     * Finds the shard that holds an auction.
+     *
+     * @param auctionID The ID of the auction.
+     * @return The name of its shard.
+     */
+    public String shardFor(int auctionID) {
+        Map.Entry<Long, String> owner = this.ring.ceilingEntry(StateDigest.mix(auctionID));
+        return owner != null ? owner.getValue() : this.ring.firstEntry().getValue();
+    }
+
+    /**
+     * Gets the shard that leases out auction IDs. IDs are unique across all
+     * shards, so they are leased from one of them.
+     *
+     * @return The name of the first shard listed.
+     */
+    public String homeShard() {
+        return this.shards.get(0);
+    }
+
+    /**
+     * Gets every shard.
+     *
+     * @return The names of the shards, in the order listed.
+     */
+    public List<String> shards() {
+        return this.shards;
+    }
+
+    /**
+     * Checks if a shard is on the ring.
+     *
+     * @param shard The name of the shard.
+     * @return True if auctions are placed on it.
+     */
+    public boolean contains(String shard) {
+        return this.shards.contains(shard);
+    }
+}
@@ -0,0 +1,164 @@
+package Server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares SnapshotCodec with Java serialisation for transferring the state of
+ * an AuctionServer. A catalog of auctions is written and read back in memory
+ * by each format, and the round trip must give back every auction unchanged,
+ * or the run is marked as failed. The best of several rounds is reported, so
+ * the JIT has warmed up.
+ *
+ * The formats are serialisation, writing the map of auctions with an
+ * ObjectOutputStream as state transfer used to, codec, the snapshot stream
+ * with raw chunks, and deflate, the snapshot stream with compressed chunks.
+ *
+ * Usage: java Server.SnapshotBenchmark [format...], benchmarking every format
+ * if none are named. The number of auctions and rounds are set with the
+ * system properties bench.auctions and bench.rounds.
+ *
+ * @author DominicWild
+ */
+public class SnapshotBenchmark {
+
+    private static final int AUCTIONS = Integer.getInteger("bench.auctions", 200000); //Auctions in the catalog.
+    private static final int ROUNDS = Integer.getInteger("bench.rounds", 5);           //Round trips per format.
+    private static final int USERS = 5000;                                              //Distinct sellers and bidders.
+    private static final List<String> FORMATS = Arrays.asList("serialisation", "codec", "deflate"); //Formats benchmarked if none are named.
+
+    public static void main(String[] args) throws Exception {
+        List<String> formats = args.length > 0 ? Arrays.asList(args) : FORMATS;
+        HashMap<Integer, Auction> catalog = catalog();
+        ArrayList<String> results = new ArrayList<>();
+        for (String format : formats) {
+            results.add(benchmark(format, catalog));
+        }
+        System.out.println();
+        System.out.println(String.format("%-14s|%10s|%10s|%10s|%14s|%14s|%6s", "Format", "Size", "Write", "Read",
+                "Written/sec", "Read/sec", "Trip"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Builds a catalog of auctions with realistic descriptions, and with a bid
+     * on most of them.
+     *
+     * @return The auctions by ID.
+     */
+    private static HashMap<Integer, Auction> catalog() {
+        Random random = new Random(42);
+        HashMap<Integer, Auction> catalog = new HashMap<>();
+        for (int id = 0; id < AUCTIONS; id++) {
+            String owner = "user" + random.nextInt(USERS);
+            StringBuilder description = new StringBuilder("Lot " + id + ":");
+            for (int w = 5 + random.nextInt(20); w > 0; w--) {
+                description.append(" item").append(random.nextInt(1000));
+            }
+            long reserve = 100 + random.nextInt(100000);
+            Bid bid = new Bid(0, "***No one***", "***No Email***");
+            if (random.nextInt(4) != 0) {
+                String bidder = "user" + random.nextInt(USERS);
+                bid = new Bid(reserve / 2 + random.nextInt(100000), bidder, bidder + "@example.com");
+            }
+            catalog.put(id, new Auction(owner, description.toString(), reserve, bid));
+        }
+        return catalog;
+    }
+
+    /**
+     * Benchmarks one format.
+     *
+     * @param format The name of the format.
+     * @param catalog The auctions to write.
+     * @return A row of the results table.
+     * @throws Exception If writing or reading failed.
+     */
+    private static String benchmark(String format, HashMap<Integer, Auction> catalog) throws Exception {
+        if (!FORMATS.contains(format)) {
+            throw new IllegalArgumentException("Unknown format " + format + ".");
+        }
+        long bestWrite = Long.MAX_VALUE;
+        long bestRead = Long.MAX_VALUE;
+        int size = 0;
+        boolean intact = true;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            byte[] bytes = write(format, catalog);
+            bestWrite = Math.min(bestWrite, System.nanoTime() - start);
+            size = bytes.length;
+
+            start = System.nanoTime();
+            Map<Integer, Auction> read = read(format, bytes);
+            bestRead = Math.min(bestRead, System.nanoTime() - start);
+            intact &= read.equals(catalog);
+        }
+        return String.format("%-14s|%8.1fMB|%8.0fms|%8.0fms|%14.0f|%14.0f|%6s", format, size / 1e6, bestWrite / 1e6,
+                bestRead / 1e6, AUCTIONS / (bestWrite / 1e9), AUCTIONS / (bestRead / 1e9), intact ? "ok" : "WRONG");
+    }
+
+    /**
+     * Writes the catalog in a format.
+     *
+     * @param format The name of the format.
+     * @param catalog The auctions to write.
+     * @return The bytes written.
+     * @throws IOException If writing failed.
+     */
+    private static byte[] write(String format, HashMap<Integer, Auction> catalog) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if ("serialisation".equals(format)) {
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(catalog);
+            }
+        } else {
+            try (SnapshotCodec.Writer out = new SnapshotCodec.Writer(bytes, "deflate".equals(format))) {
+                for (Map.Entry<Integer, Auction> e : catalog.entrySet()) {
+                    out.write(e.getKey(), e.getValue());
+                }
+                out.endSection();
+                out.finish(AUCTIONS);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a catalog back from a format.
+     *
+     * @param format The name of the format.
+     * @param bytes The bytes written.
+     * @return The auctions read, by ID.
+     * @throws Exception If reading failed.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<Integer, Auction> read(String format, byte[] bytes) throws Exception {
+        if ("serialisation".equals(format)) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return (Map<Integer, Auction>) in.readObject();
+            }
+        }
+        HashMap<Integer, Auction> read = new HashMap<>();
+        try (SnapshotCodec.Reader in = new SnapshotCodec.Reader(new ByteArrayInputStream(bytes))) {
+            while (in.next()) {
+                read.put(in.id(), in.auction());
+            }
+            if (in.next() || in.watermark() != AUCTIONS) { //Only the trailer should follow the section.
+                throw new IOException("Snapshot stream didn't end with its trailer.");
+            }
+        }
+        return read;
+    }
+}
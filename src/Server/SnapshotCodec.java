@@ -0,0 +1,527 @@
+package Server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact binary format for streaming the state of an AuctionServer. Auctions
+ * are written field by field in fixed-size chunks, each optionally compressed
+ * and protected by a CRC32 checksum, so neither side ever holds more than one
+ * chunk in memory and a corrupted transfer is detected rather than applied.
+ *
+ * A stream is a header, then chunks of auction entries split into sections by
+ * end-of-section chunks, then a trailer chunk holding the ID watermark.
+ *
+ * Within a chunk, numbers are written as variable-length integers, IDs as the
+ * difference from the entry before, and the names and emails of owners and
+ * bidders once each, then referred to by their number in the chunk's string
+ * table. Each chunk starts a new table, so chunks still decode on their own.
+ * Streams of the first version, with fixed-width fields, can still be read.
+ *
+ * Writers and readers hold a native compressor while they are open, and must
+ * be closed, whether or not the stream ended normally.
+ *
+ * @author DominicWild
+ */
+public class SnapshotCodec {
+
+    public static final String COMPRESS_PROPERTY = "auction.snapshot.compress"; //System property turning on chunk compression.
+
+    private static final int MAGIC = 0x41554353;           //"AUCS", marks the start of a snapshot stream.
+    private static final byte VERSION = 2;                  //Version of the format written.
+    private static final byte FIXED_VERSION = 1;            //Version with fixed-width fields, still read.
+    private static final int CHUNK_ENTRIES = 1024;          //Auctions per chunk.
+
+    private static final byte CHUNK_ENTRIES_TYPE = 1;       //Chunk holding auction entries.
+    private static final byte CHUNK_SECTION_END = 2;        //Chunk marking the end of a section.
+    private static final byte CHUNK_TRAILER = 3;            //Final chunk, holding the ID watermark.
+
+    private SnapshotCodec() {
+    }
+
+    /**
+     * Checks if snapshots should be compressed, as set by the
+     * auction.snapshot.compress system property.
+     *
+     * @return True if chunks should be compressed.
+     */
+    public static boolean compressionEnabled() {
+        return Boolean.getBoolean(COMPRESS_PROPERTY);
+    }
+
+    /**
+     * Writes a snapshot stream one auction at a time.
+     */
+    public static class Writer implements AutoCloseable {
+
+        private final DataOutputStream out;                                 //The stream chunks are written to.
+        private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(); //The chunk being filled.
+        private final DataOutputStream entries = new DataOutputStream(chunk);   //Writes entries into the chunk.
+        private final Deflater deflater;                                    //Compresses chunks, or null if not compressing.
+        private final ByteArrayOutputStream deflated = new ByteArrayOutputStream(); //The compressed form of the chunk.
+        private final byte[] buffer = new byte[8192];                       //Scratch space for compressing.
+        private final CRC32 crc = new CRC32();                              //Checksums chunks.
+        private final HashMap<String, Integer> strings = new HashMap<>();   //Number of each name and email in the chunk's string table.
+        private int count = 0;                                              //Entries in the chunk being filled.
+        private int lastID = 0;                                             //ID of the entry before, in the chunk being filled.
+
+        /**
+         * Starts a snapshot stream.
+         *
+         * @param output The stream to write to.
+         * @param compress Whether to compress each chunk.
+         * @throws IOException If the header couldn't be written.
+         */
+        public Writer(OutputStream output, boolean compress) throws IOException {
+            this.out = new DataOutputStream(output);
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeBoolean(compress);
+            this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null; //Only once the header is out, so a failed header leaks nothing.
+        }
+
+        /**
+         * Writes an auction entry.
+         *
+         * @param id The ID of the auction.
+         * @param a The auction, or null to record that it has been removed.
+         * @throws IOException If the chunk couldn't be written.
+         */
+        public void write(int id, Auction a) throws IOException {
+            writeVarLong(this.entries, zigZag((long) id - this.lastID));
+            this.lastID = id;
+            this.entries.writeBoolean(a != null);
+            if (a != null) {
+                Bid bid = a.getLeadingBid();
+                this.writeName(a.getOwner());
+                writeVarString(this.entries, a.getDescription());
+                writeVarLong(this.entries, zigZag(a.getReservePrice()));
+                writeVarLong(this.entries, zigZag(bid.getPrice()));
+                this.writeName(bid.getBidderName());
+                this.writeName(bid.getBidderEmail());
+            }
+            if (++this.count == CHUNK_ENTRIES) {
+                this.flushChunk();
+            }
+        }
+
+        /**
+         * Ends the current section of entries.
+         *
+         * @throws IOException If the chunk couldn't be written.
+         */
+        public void endSection() throws IOException {
+            this.flushChunk();
+            this.out.writeByte(CHUNK_SECTION_END);
+        }
+
+        /**
+         * Ends the stream with the ID watermark of the state.
+         *
+         * @param watermark The first auction ID not yet leased out.
+         * @throws IOException If the trailer couldn't be written.
+         */
+        public void finish(int watermark) throws IOException {
+            try {
+                this.flushChunk();
+                this.out.writeByte(CHUNK_TRAILER);
+                this.out.writeInt(watermark);
+                this.out.flush();
+            } finally {
+                this.close();
+            }
+        }
+
+        /**
+         * Releases the compressor, if the stream wasn't finished. The stream
+         * written to is left open.
+         */
+        @Override
+        public void close() {
+            if (this.deflater != null) {
+                this.deflater.end();
+            }
+        }
+
+        /**
+         * Writes a name or email through the chunk's string table: 0 for null,
+         * the number of a string already in the table, or the next number
+         * followed by the string itself, which joins the table.
+         *
+         * @param name The string, may be null.
+         * @throws IOException If the chunk couldn't be written.
+         */
+        private void writeName(String name) throws IOException {
+            if (name == null) {
+                writeVarLong(this.entries, 0);
+                return;
+            }
+            Integer number = this.strings.get(name);
+            if (number != null) {
+                writeVarLong(this.entries, number);
+                return;
+            }
+            number = this.strings.size() + 1;
+            this.strings.put(name, number);
+            writeVarLong(this.entries, number);
+            writeVarString(this.entries, name);
+        }
+
+        /**
+         * Writes out the entries collected so far as a chunk.
+         *
+         * @throws IOException If the chunk couldn't be written.
+         */
+        private void flushChunk() throws IOException {
+            if (this.count == 0) {
+                return;
+            }
+            byte[] raw = this.chunk.toByteArray();
+            byte[] encoded = raw;
+            if (this.deflater != null) {
+                this.deflater.reset();
+                this.deflater.setInput(raw);
+                this.deflater.finish();
+                this.deflated.reset();
+                while (!this.deflater.finished()) {
+                    this.deflated.write(this.buffer, 0, this.deflater.deflate(this.buffer));
+                }
+                encoded = this.deflated.toByteArray();
+            }
+            this.crc.reset();
+            this.crc.update(raw, 0, raw.length);
+            this.out.writeByte(CHUNK_ENTRIES_TYPE);
+            this.out.writeInt(this.count);
+            this.out.writeInt(raw.length);
+            this.out.writeInt(encoded.length);
+            this.out.writeInt((int) this.crc.getValue());
+            this.out.write(encoded);
+            this.chunk.reset();
+            this.strings.clear();
+            this.count = 0;
+            this.lastID = 0;
+        }
+    }
+
+    /**
+     * Reads a snapshot stream one auction at a time.
+     */
+    public static class Reader implements AutoCloseable {
+
+        private final DataInputStream in;           //The stream chunks are read from.
+        private final byte version;                 //Version of the format being read.
+        private final boolean compressed;           //Whether chunks are compressed.
+        private final Inflater inflater;            //Decompresses chunks, or null if not compressed.
+        private final CRC32 crc = new CRC32();      //Verifies chunks.
+        private DataInputStream entries;            //Reads entries out of the current chunk.
+        private final ArrayList<String> strings = new ArrayList<>(); //The current chunk's string table, by number less one.
+        private int remaining = 0;                  //Entries left in the current chunk.
+        private int lastID = 0;                     //ID of the entry before, in the current chunk.
+        private int watermark = -1;                 //The ID watermark, once the trailer is read.
+        private int id;                             //The ID of the current entry.
+        private Auction auction;                    //The auction of the current entry.
+
+        /**
+         * Starts reading a snapshot stream.
+         *
+         * @param input The stream to read from.
+         * @throws IOException If the header is missing or of an unknown
+         * version.
+         */
+        public Reader(InputStream input) throws IOException {
+            this.in = new DataInputStream(input);
+            if (this.in.readInt() != MAGIC) {
+                throw new StreamCorruptedException("Not an auction snapshot stream.");
+            }
+            this.version = this.in.readByte();
+            if (this.version != VERSION && this.version != FIXED_VERSION) {
+                throw new StreamCorruptedException("Unsupported snapshot version " + this.version + ".");
+            }
+            this.compressed = this.in.readBoolean();
+            this.inflater = this.compressed ? new Inflater() : null;
+        }
+
+        /**
+         * Moves to the next entry of the current section.
+         *
+         * @return True if there was another entry, false at the end of the
+         * section.
+         * @throws IOException If the stream is corrupted or ends early.
+         */
+        public boolean next() throws IOException {
+            while (this.remaining == 0) {
+                byte type = this.in.readByte();
+                if (type == CHUNK_SECTION_END) {
+                    return false;
+                } else if (type == CHUNK_TRAILER) {
+                    this.watermark = this.in.readInt();
+                    this.close();
+                    return false;
+                } else if (type != CHUNK_ENTRIES_TYPE) {
+                    throw new StreamCorruptedException("Unknown chunk type " + type + ".");
+                }
+                this.readChunk();
+            }
+            this.remaining--;
+            if (this.version == FIXED_VERSION) {
+                this.id = this.entries.readInt();
+                this.auction = this.entries.readBoolean() ? readAuction(this.entries) : null;
+                return true;
+            }
+            this.id = (int) (this.lastID + unZigZag(readVarLong(this.entries)));
+            this.lastID = this.id;
+            this.auction = null;
+            if (this.entries.readBoolean()) {
+                String owner = this.readName();
+                String description = readVarString(this.entries);
+                long reserve = unZigZag(readVarLong(this.entries));
+                long price = unZigZag(readVarLong(this.entries));
+                String bidder = this.readName();
+                this.auction = new Auction(owner, description, reserve, new Bid(price, bidder, this.readName()));
+            }
+            return true;
+        }
+
+        /**
+         * Releases the decompressor, if the trailer wasn't reached. The stream
+         * read from is left open.
+         */
+        @Override
+        public void close() {
+            if (this.inflater != null) {
+                this.inflater.end();
+            }
+        }
+
+        /**
+         * Reads a name or email written through the chunk's string table.
+         *
+         * @return The string, may be null.
+         * @throws IOException If it refers to a string not in the table.
+         */
+        private String readName() throws IOException {
+            long number = readVarLong(this.entries);
+            if (number == 0) {
+                return null;
+            } else if (number <= this.strings.size()) {
+                return this.strings.get((int) number - 1);
+            } else if (number == this.strings.size() + 1) {
+                String name = readVarString(this.entries);
+                this.strings.add(name);
+                return name;
+            }
+            throw new StreamCorruptedException("Snapshot entry refers to unknown string " + number + ".");
+        }
+
+        /**
+         * Reads, decompresses and verifies a chunk of entries.
+         *
+         * @throws IOException If the chunk is corrupted.
+         */
+        private void readChunk() throws IOException {
+            int count = this.in.readInt();
+            int rawLength = this.in.readInt();
+            int encodedLength = this.in.readInt();
+            int expectedCrc = this.in.readInt();
+            byte[] encoded = new byte[encodedLength];
+            this.in.readFully(encoded);
+            byte[] raw = encoded;
+            if (this.compressed) {
+                raw = new byte[rawLength];
+                this.inflater.reset();
+                this.inflater.setInput(encoded);
+                try {
+                    if (this.inflater.inflate(raw) != rawLength) {
+                        throw new EOFException("Snapshot chunk shorter than declared.");
+                    }
+                } catch (DataFormatException e) {
+                    throw new StreamCorruptedException("Snapshot chunk failed to decompress.");
+                }
+            }
+            this.crc.reset();
+            this.crc.update(raw, 0, raw.length);
+            if ((int) this.crc.getValue() != expectedCrc) {
+                throw new StreamCorruptedException("Snapshot chunk failed its checksum.");
+            }
+            this.entries = new DataInputStream(new ByteArrayInputStream(raw));
+            this.remaining = count;
+            this.strings.clear();
+            this.lastID = 0;
+        }
+
+        /**
+         * Gets the ID of the current entry.
+         *
+         * @return The auction ID.
+         */
+        public int id() {
+            return this.id;
+        }
+
+        /**
+         * Gets the auction of the current entry.
+         *
+         * @return The auction, or null if the entry records a removal.
+         */
+        public Auction auction() {
+            return this.auction;
+        }
+
+        /**
+         * Gets the ID watermark from the trailer.
+         *
+         * @return The watermark, or -1 if the trailer hasn't been read yet.
+         */
+        public int watermark() {
+            return this.watermark;
+        }
+    }
+
+    /**
+     * Writes a non-negative number in as few bytes as it needs, seven bits per
+     * byte with the top bit set on every byte but the last.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a number written by writeVarLong.
+     */
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Snapshot number too long.");
+    }
+
+    /**
+     * Maps signed numbers onto non-negative ones, small either way round, so
+     * they stay short as variable-length numbers.
+     */
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Undoes zigZag.
+     */
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes a string as its UTF-8 length plus one and bytes, or 0 for null.
+     */
+    private static void writeVarString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeVarString.
+     */
+    private static String readVarString(DataInputStream in) throws IOException {
+        long length = readVarLong(in) - 1;
+        if (length < 0) {
+            return null;
+        } else if (length > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("Snapshot string too long.");
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the fields of an auction with fixed widths, as in write-ahead
+     * log records and the first version of snapshot streams.
+     */
+    static void writeAuction(DataOutputStream out, Auction a) throws IOException {
+        writeString(out, a.getOwner());
+        writeString(out, a.getDescription());
+        out.writeLong(a.getReservePrice());
+        writeBid(out, a.getLeadingBid());
+    }
+
+    /**
+     * Reads an auction written by writeAuction.
+     */
+    static Auction readAuction(DataInputStream in) throws IOException {
+        String owner = readString(in);
+        String description = readString(in);
+        long reserve = in.readLong();
+        return new Auction(owner, description, reserve, readBid(in));
+    }
+
+    /**
+     * Writes the fields of a bid.
+     */
+    static void writeBid(DataOutputStream out, Bid bid) throws IOException {
+        out.writeLong(bid.getPrice());
+        writeString(out, bid.getBidderName());
+        writeString(out, bid.getBidderEmail());
+    }
+
+    /**
+     * Reads a bid written by writeBid.
+     */
+    static Bid readBid(DataInputStream in) throws IOException {
+        long price = in.readLong();
+        return new Bid(price, readString(in), readString(in));
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes, or -1 for null.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
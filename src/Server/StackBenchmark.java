@@ -0,0 +1,139 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.ResponseMode;
+import org.jgroups.blocks.RpcDispatcher;
+
+/**
+ * Compares protocol stack profiles on one host. For each profile a small
+ * cluster is started in this process, one member multicasts a burst of small
+ * messages to measure messages per second, then makes a run of RPCs to every
+ * other member to measure their latency.
+ *
+ * Usage: java Server.StackBenchmark [profile...], benchmarking every profile
+ * in the stack profiles if none are named. The number of members, messages
+ * and RPCs are set with the system properties bench.members, bench.messages
+ * and bench.rpcs.
+ *
+ * @author DominicWild
+ */
+public class StackBenchmark {
+
+    private static final int MEMBERS = Integer.getInteger("bench.members", 3);      //Members of each cluster.
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 100000); //Messages multicast per profile.
+    private static final int RPCS = Integer.getInteger("bench.rpcs", 5000);         //RPCs made per profile.
+    private static final int MESSAGE_SIZE = 100;                                    //Bytes in each message, about a bid.
+    private static final long TIMEOUT = 120000;                                     //Milliseconds to wait for a burst to arrive.
+
+    public static void main(String[] args) throws Exception {
+        List<String> profiles = new ArrayList<>(args.length > 0 ? Arrays.asList(args) : ChannelMember.stackProfiles().stringPropertyNames());
+        profiles.sort(null);
+        ArrayList<String> results = new ArrayList<>();
+        for (String profile : profiles) {
+            results.add(benchmark(profile));
+        }
+        System.out.println();
+        System.out.println(String.format("%-16s|%14s|%10s|%10s", "Profile", "Messages/sec", "RPC p50", "RPC p99"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Benchmarks one profile.
+     *
+     * @param profile The name of the profile.
+     * @return A row of the results table.
+     * @throws Exception If the cluster couldn't be started.
+     */
+    private static String benchmark(String profile) throws Exception {
+        String stack = ChannelMember.protocolStack(profile);
+        ArrayList<JChannel> channels = new ArrayList<>();
+        ArrayList<RpcDispatcher> dispatchers = new ArrayList<>();
+        CountDownLatch received = new CountDownLatch((MEMBERS - 1) * MESSAGES);
+        try {
+            for (int i = 0; i < MEMBERS; i++) {
+                JChannel channel = new JChannel(stack);
+                channel.setDiscardOwnMessages(true);
+                Counter counter = new Counter(received);
+                dispatchers.add(new RpcDispatcher(channel, counter, counter, new Echo()));
+                channel.connect("StackBenchmark-" + profile);
+                channels.add(channel);
+            }
+            JChannel sender = channels.get(0);
+            while (sender.getView().size() < MEMBERS) {
+                Thread.sleep(100);
+            }
+
+            byte[] payload = new byte[MESSAGE_SIZE];
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                sender.send(new Message(null, payload));
+            }
+            boolean all = received.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long delivered = (MEMBERS - 1) * (long) MESSAGES - received.getCount();
+            String rate = String.format("%.0f", delivered / (MEMBERS - 1) / seconds) + (all ? "" : "*");
+
+            MethodCall ping = new MethodCall("ping", new Object[]{0}, new Class<?>[]{int.class});
+            RequestOptions options = new RequestOptions(ResponseMode.GET_ALL, 5000);
+            for (int i = 0; i < RPCS / 10; i++) { //Warm up.
+                dispatchers.get(0).callRemoteMethods(null, ping, options);
+            }
+            long[] latencies = new long[RPCS];
+            for (int i = 0; i < RPCS; i++) {
+                long t = System.nanoTime();
+                dispatchers.get(0).callRemoteMethods(null, ping, options);
+                latencies[i] = System.nanoTime() - t;
+            }
+            Arrays.sort(latencies);
+            return String.format("%-16s|%14s|%8.2fms|%8.2fms", profile, rate,
+                    latencies[RPCS / 2] / 1e6, latencies[RPCS * 99 / 100] / 1e6);
+        } finally {
+            for (int i = channels.size() - 1; i >= 0; i--) {
+                channels.get(i).close();
+            }
+        }
+    }
+
+    /**
+     * Counts the messages a member receives.
+     */
+    private static class Counter extends ReceiverAdapter {
+
+        private final CountDownLatch received;                          //Counts down every message received by any member.
+        private final AtomicInteger count = new AtomicInteger();        //Messages received by this member.
+
+        Counter(CountDownLatch received) {
+            this.received = received;
+        }
+
+        @Override
+        public void receive(Message msg) {
+            if (this.count.incrementAndGet() <= MESSAGES) {
+                this.received.countDown();
+            }
+        }
+    }
+
+    /**
+     * The server object answering the benchmark's RPCs.
+     */
+    public static class Echo {
+
+        public int ping(int value) {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A hash tree summarising the state of an AuctionServer. Auctions are hashed
+ * into a fixed number of buckets by ID. Each leaf of the tree holds the sum of
+ * the hashes of the auctions in its bucket, and each inner node holds the sum
+ * of its children, so the root summarises the whole state.
+ *
+ * Because every node is a sum, a change to one auction is applied by adding
+ * the difference in its hash to one leaf and each of its ancestors. That is
+ * O(log n) atomic additions, with no lock and no dependence on the order
+ * changes are made in. Two servers holding the same auctions always have the
+ * same tree, and comparing trees from the root down finds exactly which
+ * buckets differ.
+ *
+ * @author DominicWild
+ */
+public class StateDigest {
+
+    public static final int BUCKETS = 1024;        //Number of leaves of the tree. Must be a power of two.
+    public static final int ROOT = 1;               //Index of the root node.
+
+    private static final long LISTING_SEED = 0x243F6A8885A308D3L;  //Seed for hashing the fixed details of an auction.
+    private static final long BID_SEED = 0x13198A2E03707344L;      //Seed for hashing the leading bid of an auction.
+
+    //Node i has children 2i and 2i + 1, leaves are nodes BUCKETS to 2 * BUCKETS - 1.
+    private final AtomicLongArray nodes = new AtomicLongArray(2 * BUCKETS);
+
+    /**
+     * Finds the bucket an auction ID is hashed into.
+     *
+     * @param id The auction ID.
+     * @return The bucket, from 0 to BUCKETS - 1.
+     */
+    public static int bucketOf(int id) {
+        return (int) (mix(id) >>> 32) & (BUCKETS - 1);
+    }
+
+    /**
+     * Gets the index of the leaf node of a bucket.
+     *
+     * @param bucket The bucket.
+     * @return The index of its leaf.
+     */
+    public static int leafOf(int bucket) {
+        return BUCKETS + bucket;
+    }
+
+    /**
+     * Checks if a node is a leaf of the tree.
+     *
+     * @param node The node index.
+     * @return True if the node is a leaf.
+     */
+    public static boolean isLeaf(int node) {
+        return node >= BUCKETS;
+    }
+
+    /**
+     * Records that an auction was added.
+     *
+     * @param id The ID of the auction.
+     * @param a The auction added.
+     */
+    public void add(int id, Auction a) {
+        this.addToPath(id, hashListing(id, a) + hashBid(id, a.getLeadingBid()));
+    }
+
+    /**
+     * Records that an auction was removed.
+     *
+     * @param id The ID of the auction.
+     * @param a The auction removed, holding its final bid.
+     */
+    public void remove(int id, Auction a) {
+        this.addToPath(id, -(hashListing(id, a) + hashBid(id, a.getLeadingBid())));
+    }
+
+    /**
+     * Records that the leading bid of an auction changed.
+     *
+     * @param id The ID of the auction.
+     * @param displaced The bid that was leading before.
+     * @param placed The bid now leading.
+     */
+    public void replaceBid(int id, Bid displaced, Bid placed) {
+        this.addToPath(id, hashBid(id, placed) - hashBid(id, displaced));
+    }
+
+    /**
+     * Resets the tree to that of an empty server.
+     */
+    public void clear() {
+        for (int i = 0; i < this.nodes.length(); i++) {
+            this.nodes.set(i, 0);
+        }
+    }
+
+    /**
+     * Gets the root of the tree, which summarises the whole state.
+     *
+     * @return The digest of the whole state.
+     */
+    public long root() {
+        return this.nodes.get(ROOT);
+    }
+
+    /**
+     * Gets the values of a number of nodes of the tree.
+     *
+     * @param indexes The indexes of the nodes to get.
+     * @return The value of each node, in the same order.
+     */
+    public long[] nodes(int[] indexes) {
+        long[] values = new long[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            values[i] = this.nodes.get(indexes[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Adds a change in hash to the leaf of an auction's bucket and to every
+     * node above it.
+     *
+     * @param id The ID of the auction that changed.
+     * @param delta The change in its hash.
+     */
+    private void addToPath(int id, long delta) {
+        for (int node = leafOf(bucketOf(id)); node >= ROOT; node >>>= 1) {
+            this.nodes.addAndGet(node, delta);
+        }
+    }
+
+    /**
+     * Hashes the details of an auction that never change.
+     *
+     * @param id The ID of the auction.
+     * @param a The auction.
+     * @return The hash of its fixed details.
+     */
+    private static long hashListing(int id, Auction a) {
+        long h = mix(LISTING_SEED ^ id);
+        h = mix(h ^ hash(a.getOwner()));
+        h = mix(h ^ hash(a.getDescription()));
+        return mix(h ^ a.getReservePrice());
+    }
+
+    /**
+     * Hashes the leading bid of an auction.
+     *
+     * @param id The ID of the auction.
+     * @param bid The leading bid.
+     * @return The hash of the bid.
+     */
+    private static long hashBid(int id, Bid bid) {
+        long h = mix(BID_SEED ^ id);
+        h = mix(h ^ bid.getPrice());
+        h = mix(h ^ hash(bid.getBidderName()));
+        return mix(h ^ hash(bid.getBidderEmail()));
+    }
+
+    /**
+     * Hashes a string with 64 bit FNV-1a over its UTF-8 bytes, which is the
+     * same on every server regardless of platform.
+     *
+     * @param s The string to hash, may be null.
+     * @return The hash of the string.
+     */
+    static long hash(String s) {
+        if (s == null) { //Such as the email of a bidder with no stored details.
+            return 0;
+        }
+        long h = 0xCBF29CE484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        return h;
+    }
+
+    /**
+     * Scrambles the bits of a value so that similar values give very
+     * different results. This is the finaliser of SplitMix64.
+     *
+     * @param z The value to scramble.
+     * @return The scrambled value.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
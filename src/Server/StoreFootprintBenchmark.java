@@ -0,0 +1,96 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Measures how much heap the index of auctions takes. For each catalog size
+ * the auction IDs are stored in each engine, all mapping to one shared
+ * auction, so only the engine's own keys, entries and tables are counted. The
+ * heap in use is read after a full garbage collection, before and after the
+ * engine is filled.
+ *
+ * The engines are hashmap, a HashMap of boxed IDs as AuctionServer used to
+ * keep, and heap, the HeapAuctionStore with its dense arrays and IntIntMap
+ * position tables.
+ *
+ * Usage: java Server.StoreFootprintBenchmark [engine...], benchmarking every
+ * engine if none are named. The catalog sizes are set with the system
+ * property bench.sizes, a comma separated list. Run with a heap big enough
+ * for the largest size, and with a single collector such as -XX:+UseParallelGC
+ * so the figures settle.
+ *
+ * @author DominicWild
+ */
+public class StoreFootprintBenchmark {
+
+    private static final String SIZES = System.getProperty("bench.sizes", "1000000,10000000"); //Catalog sizes benchmarked.
+    private static final int COLLECTIONS = 5;                                                   //Full collections run before each reading.
+    private static final List<String> ENGINES = Arrays.asList("hashmap", "heap");               //Engines benchmarked if none are named.
+    private static final Auction AUCTION = new Auction("seller", "Item", 0, new Bid(0, null, null)); //The auction every ID maps to.
+    private static volatile Object filled;                                                      //The engine being measured, kept reachable through its collections.
+
+    public static void main(String[] args) throws Exception {
+        List<String> engines = args.length > 0 ? Arrays.asList(args) : ENGINES;
+        ArrayList<String> results = new ArrayList<>();
+        for (String size : SIZES.split(",")) {
+            for (String engine : engines) {
+                results.add(benchmark(engine, Integer.parseInt(size.trim())));
+            }
+        }
+        System.out.println();
+        System.out.println(String.format("%-10s|%-10s|%10s|%12s", "Auctions", "Engine", "Heap", "Bytes/entry"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Benchmarks one engine on one catalog size.
+     *
+     * @param engine The name of the engine.
+     * @param auctions The number of auctions to store.
+     * @return A row of the results table.
+     * @throws InterruptedException If interrupted waiting for a collection.
+     */
+    private static String benchmark(String engine, int auctions) throws InterruptedException {
+        if (!ENGINES.contains(engine)) {
+            throw new IllegalArgumentException("Unknown engine " + engine + ".");
+        }
+        long before = usedHeap();
+        if ("hashmap".equals(engine)) {
+            HashMap<Integer, Auction> map = new HashMap<>();
+            for (int id = 0; id < auctions; id++) {
+                map.put(id, AUCTION);
+            }
+            filled = map;
+        } else {
+            HeapAuctionStore store = new HeapAuctionStore();
+            for (int id = 0; id < auctions; id++) {
+                store.put(id, AUCTION);
+            }
+            filled = store;
+        }
+        long used = usedHeap() - before;
+        filled = null;
+        return String.format("%-10d|%-10s|%8.1fMB|%12.1f", auctions, engine, used / 1e6, (double) used / auctions);
+    }
+
+    /**
+     * Gets the heap in use once garbage has been collected.
+     *
+     * @return The bytes of heap in use.
+     * @throws InterruptedException If interrupted between collections.
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < COLLECTIONS; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
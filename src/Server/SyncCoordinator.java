@@ -0,0 +1,129 @@
+package Server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.ResponseMode;
+import org.jgroups.blocks.RpcDispatcher;
+
+/**
+ * Makes sure each AuctionServer has at most one sync in progress. Requests to
+ * sync a server that is already syncing are merged into the sync running, and
+ * a server that has just synced, or failed to, is left alone for a while
+ * before it is synced again, backing off further after each failure.
+ *
+ * While a server syncs its replies describe a state being rebuilt, so it is
+ * left out of votes on client calls until it reports it has caught up.
+ *
+ * @author DominicWild
+ */
+public class SyncCoordinator {
+
+    private static final long SYNC_TIMEOUT = 60000;                     //Milliseconds a server has to finish a sync.
+    private static final long SETTLE_TIME = 1000;                       //Milliseconds a server is left alone after a sync.
+    private static final long MAX_BACKOFF = 30000;                      //Longest a server is left alone after failed syncs.
+
+    private final RpcDispatcher rpc;                                    //Dispatcher to reach the AuctionServers with.
+    private final RequestOptions syncOptions = new RequestOptions(ResponseMode.GET_FIRST, SYNC_TIMEOUT, false, null, Message.Flag.OOB); //Out of band, so a sync doesn't hold up client calls queued behind it.
+    private final Set<Address> syncing = ConcurrentHashMap.newKeySet(); //Servers with a sync in progress.
+    private final ConcurrentHashMap<Address, Long> resting = new ConcurrentHashMap<>(); //When each recently synced server may be synced again.
+    private final ConcurrentHashMap<Address, Long> backoff = new ConcurrentHashMap<>(); //Current backoff of servers whose syncs failed.
+    private final ConcurrentHashMap<Address, Integer> coalesced = new ConcurrentHashMap<>(); //Requests merged into each sync in progress.
+
+    /**
+     * Creates a coordinator.
+     *
+     * @param rpc The dispatcher to reach the AuctionServers with.
+     */
+    public SyncCoordinator(RpcDispatcher rpc) {
+        this.rpc = rpc;
+    }
+
+    /**
+     * Asks a server to delta sync with another, unless it is already syncing
+     * or was synced too recently. Returns without waiting for the sync.
+     *
+     * @param stale The address of the server to sync.
+     * @param donor The address of a server to copy from.
+     * @return True if a new sync was started.
+     */
+    public boolean requestSync(Address stale, Address donor) {
+        Long until = this.resting.get(stale);
+        if (until != null && System.currentTimeMillis() < until) {
+            return false;
+        }
+        if (!this.syncing.add(stale)) { //Already syncing, that sync will fix this too.
+            this.coalesced.merge(stale, 1, Integer::sum);
+            return false;
+        }
+        System.out.println("Syncing " + stale + " with " + donor);
+        try {
+            MethodCall sync = new MethodCall("sync", new Object[]{donor}, new Class<?>[]{Address.class});
+            this.rpc.callRemoteMethodWithFuture(stale, sync, this.syncOptions, future -> this.finished(stale, future));
+            return true;
+        } catch (Exception ex) {
+            Logger.getLogger(SyncCoordinator.class.getName()).log(Level.WARNING, "Error sending sync request to " + stale, ex);
+            this.finished(stale, null);
+            return false;
+        }
+    }
+
+    /**
+     * Checks if a server is syncing, and so shouldn't be counted in votes.
+     *
+     * @param server The address of the server.
+     * @return True if the server has a sync in progress.
+     */
+    public boolean isSyncing(Address server) {
+        return this.syncing.contains(server);
+    }
+
+    /**
+     * Gets every server with a sync in progress.
+     *
+     * @return A live, read-only view of the syncing servers.
+     */
+    public Set<Address> syncing() {
+        return Collections.unmodifiableSet(this.syncing);
+    }
+
+    /**
+     * Records the end of a sync, letting the server vote again and setting
+     * how long until it may be synced again.
+     *
+     * @param server The server that was syncing.
+     * @param future The result of the sync, or null if it was never sent.
+     */
+    private void finished(Address server, Future<Object> future) {
+        boolean succeeded = false;
+        if (future != null) {
+            try {
+                future.get();
+                succeeded = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Logger.getLogger(SyncCoordinator.class.getName()).log(Level.WARNING, "Sync of " + server + " failed.", e.getCause());
+            }
+        }
+        long wait;
+        if (succeeded) {
+            this.backoff.remove(server);
+            wait = SETTLE_TIME; //Let in-flight writes settle before judging it again.
+        } else {
+            wait = this.backoff.merge(server, SETTLE_TIME * 2, (old, first) -> Math.min(old * 2, MAX_BACKOFF));
+        }
+        this.resting.put(server, System.currentTimeMillis() + wait);
+        Integer merged = this.coalesced.remove(server);
+        this.syncing.remove(server);
+        System.out.println("Sync of " + server + (succeeded ? " caught up" : " failed") + (merged == null ? "" : ", merged " + merged + " repeat requests") + ", resting " + wait + "ms.");
+    }
+}
@@ -0,0 +1,640 @@
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable log of every change made to the auctions of a server, so it can
+ * rebuild its state after a restart without the rest of the cluster.
+ *
+ * Changes are appended to memory-mapped segment files. A writer waits for its
+ * change to reach the disk before answering, but writers waiting at the same
+ * time share a single flush: the first to arrive flushes everything appended
+ * so far, and the rest find their change already on disk. Whenever a segment
+ * fills up a snapshot of the whole state is written in the SnapshotCodec
+ * format in the background, and the segments it covers are deleted, so
+ * recovery reads one snapshot plus a short tail of the log.
+ *
+ * Records are appended while the shared bucket lock of the auction is held,
+ * which orders them against repairs but not against each other, so two
+ * writers on the same auction may log in a different order to the one they
+ * applied their changes in. Replay is built to give the same result in any
+ * such order: bids only ever replace lower bids, a bid logged before the add
+ * of its auction is held until the add is replayed, and an auction is never
+ * added back once its removal has been replayed, as IDs are never reused.
+ *
+ * Segments are unmapped as soon as they are no longer appended to or being
+ * flushed, rather than whenever the garbage collector gets to them.
+ *
+ * @author DominicWild
+ */
+public class WriteAheadLog {
+
+    public static final String DATA_DIR_PROPERTY = "auction.data.dir";  //System property naming the directory to keep the log in.
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;          //Bytes in each segment file.
+    private static final int RECORD_HEADER = 8;                         //Bytes before each record, its length and checksum.
+    private static final String SEGMENT_PREFIX = "wal-";                //Start of segment file names, followed by their number.
+    private static final String SEGMENT_SUFFIX = ".log";                //End of segment file names.
+    private static final String SNAPSHOT_PREFIX = "snapshot-";          //Start of snapshot file names, followed by the first segment not covered.
+    private static final String SNAPSHOT_SUFFIX = ".snap";              //End of snapshot file names.
+    private static final String SNAPSHOT_TEMP = "snapshot.tmp";         //Snapshot being written.
+
+    private static final byte ADD = 1;                                  //An auction was added.
+    private static final byte REMOVE = 2;                               //An auction was removed.
+    private static final byte BID = 3;                                  //A bid was placed.
+    private static final byte LEASE = 4;                                //A range of IDs was leased out.
+    private static final byte PUT = 5;                                  //An auction was overwritten by a repair.
+
+    private final Path directory;                                       //Directory holding the segments and snapshots.
+    private final SnapshotSource source;                                //Writes the state when a snapshot is taken.
+    private final Object appendLock = new Object();                     //Guards the current segment and the append count.
+    private final Object flushLock = new Object();                      //Guards the flush state.
+    private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "wal-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });                                                                 //Takes snapshots in the background.
+    private final AtomicBoolean checkpointPending = new AtomicBoolean(); //Whether a snapshot is already queued.
+
+    private long segmentNumber;                                         //Number of the segment being appended to.
+    private MappedByteBuffer segment;                                   //The segment being appended to.
+    private MappedByteBuffer forcing;                                   //The segment being flushed by sync, or null.
+    private MappedByteBuffer retired;                                   //A segment rotated out while being flushed, unmapped once the flush ends.
+    private long appended = 0;                                          //Records appended, also the sequence number of the last one.
+    private long durable = 0;                                           //Records known to be on disk.
+    private boolean flushing = false;                                   //Whether a writer is flushing for everyone.
+    private boolean recovered = false;                                  //Whether any state was found on disk at start up.
+
+    /**
+     * Applies the changes read back from the log to the state of a server.
+     */
+    public interface Replayer {
+
+        void put(int id, Auction a);
+
+        void add(int id, Auction a);
+
+        void remove(int id);
+
+        /**
+         * Applies a bid if it beats the one leading.
+         *
+         * @return True if the auction exists, whether or not the bid won.
+         */
+        boolean bid(int id, Bid bid);
+
+        void lease(int watermark);
+    }
+
+    /**
+     * Writes the whole state of a server into a snapshot: every auction, two
+     * section ends and the ID watermark.
+     */
+    public interface SnapshotSource {
+
+        void writeTo(SnapshotCodec.Writer out) throws IOException;
+    }
+
+    /**
+     * Appends one record to a log, for callers that handle a missing log and
+     * write failures in one place.
+     */
+    public interface Append {
+
+        long to(WriteAheadLog log) throws IOException;
+    }
+
+    /**
+     * A record of a change, built in memory before it is appended.
+     */
+    private static class Record extends DataOutputStream {
+
+        /**
+         * Starts a record of a change.
+         *
+         * @param type The kind of change.
+         * @param id The auction ID, or watermark, the change is about.
+         * @throws IOException Never, the record is built in memory.
+         */
+        Record(byte type, int id) throws IOException {
+            super(new ByteArrayOutputStream(64));
+            this.writeByte(type);
+            this.writeInt(id);
+        }
+
+        /**
+         * Gets the bytes of the record.
+         *
+         * @return The record as written so far.
+         * @throws IOException Never, the record is built in memory.
+         */
+        byte[] bytes() throws IOException {
+            this.flush();
+            return ((ByteArrayOutputStream) this.out).toByteArray();
+        }
+    }
+
+    private WriteAheadLog(Path directory, SnapshotSource source) {
+        this.directory = directory;
+        this.source = source;
+    }
+
+    /**
+     * Opens the log in a directory, replaying any snapshot and records found
+     * there, then starts a new segment to append to.
+     *
+     * @param directory The directory holding the log, created if missing.
+     * @param replayer Applies the recovered state.
+     * @param source Writes the state when snapshots are taken.
+     * @return The opened log.
+     * @throws IOException If the directory couldn't be read or written.
+     */
+    public static WriteAheadLog open(Path directory, Replayer replayer, SnapshotSource source) throws IOException {
+        Files.createDirectories(directory);
+        WriteAheadLog log = new WriteAheadLog(directory, source);
+        log.segmentNumber = log.recover(replayer);
+        log.openSegment();
+        return log;
+    }
+
+    /**
+     * Checks if there was any state on disk when the log was opened.
+     *
+     * @return True if a snapshot or records were replayed.
+     */
+    public boolean hasRecovered() {
+        return this.recovered;
+    }
+
+    /**
+     * Logs that an auction was added.
+     *
+     * @param id The ID of the auction.
+     * @param a The auction added.
+     * @return The sequence number of the record, to pass to sync.
+     * @throws IOException If the record couldn't be appended.
+     */
+    public long add(int id, Auction a) throws IOException {
+        Record out = new Record(ADD, id);
+        SnapshotCodec.writeAuction(out, a);
+        return this.append(out);
+    }
+
+    /**
+     * Logs that an auction was overwritten by a repair from another server.
+     *
+     * @param id The ID of the auction.
+     * @param a The auction as it now is.
+     * @return The sequence number of the record, to pass to sync.
+     * @throws IOException If the record couldn't be appended.
+     */
+    public long put(int id, Auction a) throws IOException {
+        Record out = new Record(PUT, id);
+        SnapshotCodec.writeAuction(out, a);
+        return this.append(out);
+    }
+
+    /**
+     * Logs that an auction was removed.
+     *
+     * @param id The ID of the auction.
+     * @return The sequence number of the record, to pass to sync.
+     * @throws IOException If the record couldn't be appended.
+     */
+    public long remove(int id) throws IOException {
+        return this.append(new Record(REMOVE, id));
+    }
+
+    /**
+     * Logs that a bid took the lead on an auction.
+     *
+     * @param id The ID of the auction.
+     * @param bid The bid now leading.
+     * @return The sequence number of the record, to pass to sync.
+     * @throws IOException If the record couldn't be appended.
+     */
+    public long bid(int id, Bid bid) throws IOException {
+        Record out = new Record(BID, id);
+        SnapshotCodec.writeBid(out, bid);
+        return this.append(out);
+    }
+
+    /**
+     * Logs that IDs were leased out up to a new watermark.
+     *
+     * @param watermark The first ID not yet leased out.
+     * @return The sequence number of the record, to pass to sync.
+     * @throws IOException If the record couldn't be appended.
+     */
+    public long lease(int watermark) throws IOException {
+        return this.append(new Record(LEASE, watermark));
+    }
+
+    /**
+     * Waits until a record is on disk. If no one else is flushing, this
+     * flushes every record appended so far, so writers arriving together share
+     * one flush.
+     *
+     * @param sequence The sequence number of the record.
+     * @throws IOException If the segment couldn't be flushed.
+     */
+    public void sync(long sequence) throws IOException {
+        synchronized (this.flushLock) {
+            while (this.durable < sequence && this.flushing) {
+                try {
+                    this.flushLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the log to flush.");
+                }
+            }
+            if (this.durable >= sequence) {
+                return;
+            }
+            this.flushing = true; //Flush for everyone waiting.
+        }
+        try {
+            MappedByteBuffer target;
+            long upTo;
+            synchronized (this.appendLock) { //Earlier segments were flushed when they filled up.
+                target = this.segment;
+                upTo = this.appended;
+                this.forcing = target;
+            }
+            try {
+                target.force();
+            } finally {
+                synchronized (this.appendLock) {
+                    this.forcing = null;
+                    if (this.retired == target) { //Rotated out while we flushed it.
+                        this.retired = null;
+                        unmap(target);
+                    }
+                }
+            }
+            synchronized (this.flushLock) {
+                this.durable = Math.max(this.durable, upTo);
+            }
+        } finally {
+            synchronized (this.flushLock) {
+                this.flushing = false;
+                this.flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queues a snapshot of the state to be taken in the background, unless one
+     * is already queued.
+     */
+    public void scheduleCheckpoint() {
+        if (this.checkpointPending.compareAndSet(false, true)) {
+            this.checkpointer.execute(() -> {
+                this.checkpointPending.set(false);
+                try {
+                    this.checkpoint();
+                } catch (IOException ex) {
+                    Logger.getLogger(WriteAheadLog.class.getName()).log(Level.SEVERE, "Error writing snapshot.", ex);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes a snapshot of the state, then deletes the segments and older
+     * snapshots it replaces. A new segment is started first, so every change
+     * the snapshot might miss is in a segment that is kept.
+     *
+     * @throws IOException If the snapshot couldn't be written.
+     */
+    public void checkpoint() throws IOException {
+        long base;
+        synchronized (this.appendLock) {
+            this.rotate();
+            base = this.segmentNumber;
+        }
+        Path temp = this.directory.resolve(SNAPSHOT_TEMP);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            try (SnapshotCodec.Writer writer = new SnapshotCodec.Writer(out, SnapshotCodec.compressionEnabled())) {
+                this.source.writeTo(writer);
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, this.directory.resolve(SNAPSHOT_PREFIX + base + SNAPSHOT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+        for (long n : this.numbered(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (n < base) {
+                Files.deleteIfExists(this.directory.resolve(SNAPSHOT_PREFIX + n + SNAPSHOT_SUFFIX));
+            }
+        }
+        for (long n : this.numbered(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (n < base) {
+                Files.deleteIfExists(this.segmentPath(n));
+            }
+        }
+        System.out.println("Wrote snapshot, log now starts at segment " + base + ".");
+    }
+
+    /**
+     * Appends a record to the current segment, moving on to a new segment if
+     * it doesn't fit.
+     *
+     * @param record The record to append.
+     * @return The sequence number of the record.
+     * @throws IOException If a new segment couldn't be started.
+     */
+    private long append(Record record) throws IOException {
+        byte[] body = record.bytes();
+        if (body.length + RECORD_HEADER > SEGMENT_SIZE) {
+            throw new IOException("Log record of " + body.length + " bytes is larger than a segment.");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        synchronized (this.appendLock) {
+            if (this.segment.remaining() < body.length + RECORD_HEADER) {
+                this.rotate();
+                this.scheduleCheckpoint(); //Keep the log to about two segments.
+            }
+            this.segment.putInt(body.length);
+            this.segment.putInt((int) crc.getValue());
+            this.segment.put(body);
+            return ++this.appended;
+        }
+    }
+
+    /**
+     * Flushes the current segment and starts the next, unmapping the old one
+     * unless sync is still flushing it. Must be called holding the append
+     * lock.
+     *
+     * @throws IOException If the next segment couldn't be created.
+     */
+    private void rotate() throws IOException {
+        this.segment.force(); //Everything in earlier segments is then on disk.
+        synchronized (this.flushLock) {
+            this.durable = Math.max(this.durable, this.appended);
+        }
+        MappedByteBuffer old = this.segment;
+        this.segmentNumber++;
+        this.openSegment();
+        if (old == this.forcing) {
+            this.retired = old; //Left for sync to unmap.
+        } else {
+            unmap(old);
+        }
+    }
+
+    /**
+     * Releases the memory mapping of a segment at once, so its file can be
+     * deleted and the address space reused. Falls back to leaving it to the
+     * garbage collector if the running Java doesn't allow it. The buffer must
+     * not be used again.
+     *
+     * @param buffer The mapped segment.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer); //Java 9 and later.
+        } catch (NoSuchMethodException e) {
+            try { //Java 8.
+                Method cleanerOf = buffer.getClass().getMethod("cleaner");
+                cleanerOf.setAccessible(true);
+                Object cleaner = cleanerOf.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                Logger.getLogger(WriteAheadLog.class.getName()).log(Level.FINE, "Can't unmap log segments, leaving them to the garbage collector.", ex);
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Logger.getLogger(WriteAheadLog.class.getName()).log(Level.FINE, "Can't unmap log segments, leaving them to the garbage collector.", ex);
+        }
+    }
+
+    /**
+     * Creates and maps the segment to append to.
+     *
+     * @throws IOException If the segment couldn't be created.
+     */
+    private void openSegment() throws IOException {
+        try (FileChannel channel = FileChannel.open(this.segmentPath(this.segmentNumber), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE); //The mapping outlives the channel.
+        }
+    }
+
+    /**
+     * Replays the newest snapshot, then every record in the segments after it.
+     * Replay of a segment stops at the first record that is incomplete or
+     * fails its checksum, which is where a crash interrupted the log.
+     *
+     * @param replayer Applies the recovered state.
+     * @return The number of the first segment not yet used.
+     * @throws IOException If the directory couldn't be read.
+     */
+    private long recover(Replayer replayer) throws IOException {
+        Files.deleteIfExists(this.directory.resolve(SNAPSHOT_TEMP)); //Left by a crash part way through a snapshot.
+        ArrayList<Long> snapshots = this.numbered(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long base = 0;
+        if (!snapshots.isEmpty()) {
+            base = snapshots.get(snapshots.size() - 1);
+            try (InputStream in = Files.newInputStream(this.directory.resolve(SNAPSHOT_PREFIX + base + SNAPSHOT_SUFFIX));
+                    SnapshotCodec.Reader reader = new SnapshotCodec.Reader(new BufferedInputStream(in, 1 << 16))) {
+                while (reader.next()) {
+                    replayer.put(reader.id(), reader.auction());
+                }
+                while (reader.next()) { //Snapshots of the log have no catch-up section.
+                }
+                reader.next();
+                replayer.lease(reader.watermark());
+            }
+            this.recovered = true;
+        }
+        long next = base;
+        long records = 0;
+        HashSet<Integer> removed = new HashSet<>(); //Auctions that must not be brought back by an add replayed late.
+        HashMap<Integer, Bid> early = new HashMap<>(); //Highest bid logged on each auction not yet added.
+        for (long n : this.numbered(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (n < base) {
+                Files.deleteIfExists(this.segmentPath(n)); //Already covered by the snapshot.
+                continue;
+            }
+            records += this.replaySegment(n, replayer, removed, early);
+            next = n + 1;
+        }
+        if (records > 0) {
+            this.recovered = true;
+        }
+        System.out.println("Recovered " + records + " log records" + (snapshots.isEmpty() ? "." : " on top of snapshot " + base + "."));
+        return next;
+    }
+
+    /**
+     * Replays every complete record of one segment.
+     *
+     * @param number The number of the segment.
+     * @param replayer Applies the records.
+     * @param removed IDs of auctions whose removal has been replayed.
+     * @param early Bids logged before the add of their auction.
+     * @return The number of records replayed.
+     * @throws IOException If the segment couldn't be read.
+     */
+    private long replaySegment(long number, Replayer replayer, HashSet<Integer> removed, HashMap<Integer, Bid> early) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(this.segmentPath(number), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            return this.replayRecords(number, buffer, replayer, removed, early);
+        } finally {
+            unmap(buffer);
+        }
+    }
+
+    /**
+     * Replays every complete record of a mapped segment.
+     *
+     * @param number The number of the segment.
+     * @param buffer The mapped segment.
+     * @param replayer Applies the records.
+     * @param removed IDs of auctions whose removal has been replayed.
+     * @param early Bids logged before the add of their auction.
+     * @return The number of records replayed.
+     * @throws IOException If a record is malformed.
+     */
+    private long replayRecords(long number, MappedByteBuffer buffer, Replayer replayer, HashSet<Integer> removed, HashMap<Integer, Bid> early) throws IOException {
+        CRC32 crc = new CRC32();
+        long records = 0;
+        while (buffer.remaining() >= RECORD_HEADER) {
+            int length = buffer.getInt();
+            int expected = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break; //The end of the log, or a torn write.
+            }
+            byte[] body = new byte[length];
+            buffer.get(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != expected) {
+                Logger.getLogger(WriteAheadLog.class.getName()).log(Level.WARNING, "Log segment {0} has a corrupt record, ignoring the rest of it.", number);
+                break;
+            }
+            this.replayRecord(new DataInputStream(new ByteArrayInputStream(body)), replayer, removed, early);
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Applies one record.
+     *
+     * @param in The body of the record.
+     * @param replayer Applies the record.
+     * @param removed IDs of auctions whose removal has been replayed.
+     * @param early Bids logged before the add of their auction.
+     * @throws IOException If the record is malformed.
+     */
+    private void replayRecord(DataInputStream in, Replayer replayer, HashSet<Integer> removed, HashMap<Integer, Bid> early) throws IOException {
+        byte type = in.readByte();
+        int id = in.readInt();
+        switch (type) {
+            case ADD:
+                Auction added = SnapshotCodec.readAuction(in);
+                if (!removed.contains(id)) {
+                    replayer.add(id, added);
+                    Bid waiting = early.remove(id);
+                    if (waiting != null) {
+                        replayer.bid(id, waiting);
+                    }
+                }
+                break;
+            case PUT:
+                removed.remove(id);
+                early.remove(id); //A repair's copy already holds every bid made before it.
+                replayer.put(id, SnapshotCodec.readAuction(in));
+                break;
+            case REMOVE:
+                removed.add(id);
+                early.remove(id);
+                replayer.remove(id);
+                break;
+            case BID:
+                Bid bid = SnapshotCodec.readBid(in);
+                if (!replayer.bid(id, bid) && !removed.contains(id)) { //Placed before its add was logged.
+                    early.merge(id, bid, (a, b) -> b.beats(a) ? b : a);
+                }
+                break;
+            case LEASE:
+                replayer.lease(id);
+                break;
+            default:
+                throw new IOException("Unknown log record type " + type + ".");
+        }
+    }
+
+    /**
+     * Lists the numbers of the files in the log directory with a name of the
+     * form prefix, number, suffix.
+     *
+     * @param prefix The start of the file names.
+     * @param suffix The end of the file names.
+     * @return The numbers found, in ascending order.
+     * @throws IOException If the directory couldn't be read.
+     */
+    private ArrayList<Long> numbered(String prefix, String suffix) throws IOException {
+        ArrayList<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    System.out.println("Ignoring unexpected file in log directory: " + name);
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Gets the path of a segment file.
+     *
+     * @param number The number of the segment.
+     * @return The path of its file.
+     */
+    private Path segmentPath(long number) {
+        return this.directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+}
@@ -13,12 +13,12 @@ public interface AuctionSellerInterface extends Remote {
     /**
      * Creates an auction listing on the server with the passed parameters
      *
-     * @param startPrice The starting price of this item.
+     * @param startPrice The starting price of this item, in cents.
      * @param description The description of this item.
-     * @param minPrice The minimum acceptable price for this item.
+     * @param minPrice The minimum acceptable price for this item, in cents.
      * @return The auction ID of this created listing.
      */
-    public int createAuction(double startPrice, String description, double minPrice) throws RemoteException;
+    public int createAuction(long startPrice, String description, long minPrice) throws RemoteException;
 
     /**
      * Closes the auction listing with the passed auction ID. The status of the
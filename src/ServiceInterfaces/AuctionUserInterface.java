@@ -14,9 +14,9 @@ public interface AuctionUserInterface extends Remote {
     /**
      * Registers a bid on an item with the specified amount.
      * @param auctionID The id of the auction to place the
-     * @param amount The amount to bid on the auction.
+     * @param amount The amount to bid on the auction, in cents.
      */
-    public String bid(int auctionID, double amount) throws RemoteException;
+    public String bid(int auctionID, long amount) throws RemoteException;
 
     /**
      * Prints a list of all available auctions to console.
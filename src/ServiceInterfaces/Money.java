@@ -0,0 +1,44 @@
+package ServiceInterfaces;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Converts between the text form of an amount of money and the whole number
+ * of cents the Auction System works in. Prices are passed around as longs so
+ * every server compares and hashes them exactly.
+ *
+ * @author DominicWild
+ */
+public final class Money {
+
+    private Money() {
+    }
+
+    /**
+     * Parses an amount such as "12.5" into cents. Fractions of a cent are
+     * rounded half up.
+     *
+     * @param amount The amount to parse.
+     * @return The amount in cents.
+     * @throws NumberFormatException If the amount isn't a valid number or is
+     * too large to hold in cents.
+     */
+    public static long parse(String amount) throws NumberFormatException {
+        try {
+            return new BigDecimal(amount.trim()).setScale(2, RoundingMode.HALF_UP).movePointRight(2).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + amount);
+        }
+    }
+
+    /**
+     * Formats an amount in cents with two decimal places, such as "12.50".
+     *
+     * @param cents The amount in cents.
+     * @return The formatted amount.
+     */
+    public static String format(long cents) {
+        return BigDecimal.valueOf(cents, 2).toPlainString();
+    }
+}